@@ -0,0 +1,34 @@
+package org.panda.mutexdenovo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A random gene set of parameterized size from the genes of the synthetic matrix.
+ */
+@State(Scope.Benchmark)
+public class GeneSetState
+{
+	@Param({"5", "50"})
+	public int setSize;
+
+	Matrix matrix;
+
+	Set<String> geneSet;
+
+	@Setup(Level.Trial)
+	public void setup(SyntheticMatrixState state)
+	{
+		matrix = state.matrix;
+
+		Random r = new Random(7);
+		geneSet = new HashSet<>();
+		while (geneSet.size() < Math.min(setSize, matrix.getGeneCount()))
+		{
+			geneSet.add(matrix.getGeneName(r.nextInt(matrix.getGeneCount())));
+		}
+	}
+}
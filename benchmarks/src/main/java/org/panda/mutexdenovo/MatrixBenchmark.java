@@ -0,0 +1,35 @@
+package org.panda.mutexdenovo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the gene set statistics that are calculated on the matrix.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatrixBenchmark
+{
+	@Benchmark
+	public int countCoverage(GeneSetState state)
+	{
+		return state.matrix.countCoverage(state.geneSet);
+	}
+
+	@Benchmark
+	public int countOverlap(GeneSetState state)
+	{
+		return state.matrix.countOverlap(state.geneSet);
+	}
+
+	@Benchmark
+	public Map<String, Map<String, Integer>> countOverlapPairwise(GeneSetState state)
+	{
+		return state.matrix.countOverlapPairwise(state.geneSet);
+	}
+}
@@ -0,0 +1,40 @@
+package org.panda.mutexdenovo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the per-gene-set sample hit calculations of the tester.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MutexTesterBenchmark
+{
+	private MutexTester tester;
+
+	@Setup(Level.Trial)
+	public void setup(GeneSetState state)
+	{
+		tester = new MutexTester(state.matrix, Collections.emptyMap(), "benchmark", 0);
+	}
+
+	@Benchmark
+	public Map<Integer, Long> getSampleHitCounts(GeneSetState state)
+	{
+		return tester.getSampleHitCounts(state.matrix, state.geneSet);
+	}
+
+	@Benchmark
+	public Map<String, Set<Integer>> getGeneToIndices(GeneSetState state)
+	{
+		return tester.getGeneToIndices(state.matrix, state.geneSet);
+	}
+}
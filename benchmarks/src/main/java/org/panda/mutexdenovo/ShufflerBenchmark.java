@@ -0,0 +1,37 @@
+package org.panda.mutexdenovo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of one randomization of the matrix with the default rounds of each randomizer, which is the cost of each
+ * permutation iteration.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShufflerBenchmark
+{
+	@Param({MatrixRandomizer.SWAP, MatrixRandomizer.CURVEBALL})
+	public String randomizer;
+
+	private MatrixRandomizer shuffler;
+
+	@Setup(Level.Trial)
+	public void setup(SyntheticMatrixState state)
+	{
+		shuffler = MatrixRandomizer.create(randomizer, state.matrix.copy(), new XoroshiroRandom(1),
+			MatrixRandomizer.getDefaultRounds(randomizer));
+	}
+
+	@Benchmark
+	public void shuffle() throws IOException
+	{
+		shuffler.shuffle();
+	}
+}
@@ -0,0 +1,52 @@
+package org.panda.mutexdenovo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+
+/**
+ * A random alteration matrix of parameterized size and density, shared by the benchmarks. Mutation rates of the genes
+ * vary, as in the real data, where few genes have most of the mutations.
+ */
+@State(Scope.Benchmark)
+public class SyntheticMatrixState
+{
+	@Param({"2000", "20000"})
+	public int genes;
+
+	@Param({"1000", "10000"})
+	public int samples;
+
+	/**
+	 * Mean fraction of altered cells.
+	 */
+	@Param({"0.0005", "0.005"})
+	public double density;
+
+	Matrix matrix;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		Random r = new Random(42);
+
+		String[] cols = new String[samples];
+		for (int i = 0; i < samples; i++) cols[i] = "S" + i;
+
+		String[] names = new String[genes];
+		long[][] rows = new long[genes][Matrix.wordCount(samples)];
+		for (int g = 0; g < genes; g++)
+		{
+			names[g] = "G" + g;
+
+			// Exponentially distributed rates with the given mean
+			double rate = Math.min(1, -Math.log(1 - r.nextDouble()) * density);
+			for (int i = 0; i < samples; i++)
+			{
+				if (r.nextDouble() < rate) Matrix.set(rows[g], i);
+			}
+		}
+		matrix = new Matrix(cols, names, rows);
+		matrix.getEdges();
+	}
+}
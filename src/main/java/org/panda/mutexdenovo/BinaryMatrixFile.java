@@ -0,0 +1,178 @@
+package org.panda.mutexdenovo;
+
+import java.io.*;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary file format of the alteration matrix, which loads without parsing. The file starts with a header that has the
+ * sample count, the gene count and the offset of the rows. The sample names and the gene names follow, and the packed
+ * rows of the genes start at the offset, aligned to 8 bytes. The rows are read by memory-mapping the file, hence
+ * concurrent jobs on the same file share the pages in the operating system cache.
+ */
+public class BinaryMatrixFile
+{
+	/**
+	 * Identifier at the beginning of the binary matrix files.
+	 */
+	private static final int MAGIC = 0x4D444E42;
+
+	private static final int VERSION = 1;
+
+	/**
+	 * Conventional extension of binary matrix files. Files are recognized by their content, not by the extension.
+	 */
+	public static final String EXTENSION = ".bin";
+
+	/**
+	 * Largest part of the rows that is mapped at once.
+	 */
+	private static final long MMAP_WINDOW = 1L << 30;
+
+	private String[] colNames;
+
+	private String[] genes;
+
+	private long[][] rows;
+
+	/**
+	 * Checks if the file is a binary matrix file.
+	 * @param filename the file name
+	 * @return true if the file starts with the binary matrix identifier
+	 * @throws IOException if the file cannot be read
+	 */
+	public static boolean isBinary(String filename) throws IOException
+	{
+		if (filename.equals(MatrixParser.STDIN) || Files.size(Paths.get(filename)) < 4) return false;
+
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(Paths.get(filename))))
+		{
+			return in.readInt() == MAGIC;
+		}
+	}
+
+	/**
+	 * Writes the matrix in the binary format.
+	 * @param matrix the matrix
+	 * @param filename the file name
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(Matrix matrix, String filename) throws IOException
+	{
+		// The rows start after the names, hence the names are encoded first to find the offset
+		ByteArrayOutputStream names = new ByteArrayOutputStream();
+		DataOutputStream nameOut = new DataOutputStream(names);
+		for (String col : matrix.getColNames())
+		{
+			nameOut.writeUTF(col);
+		}
+		for (int g = 0; g < matrix.getGeneCount(); g++)
+		{
+			nameOut.writeUTF(matrix.getGeneName(g));
+		}
+
+		long offset = 24 + names.size();
+		int padding = (int) (-offset & 7);
+		offset += padding;
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+			Files.newOutputStream(Paths.get(filename)), 1 << 16)))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(matrix.getSampleCount());
+			out.writeInt(matrix.getGeneCount());
+			out.writeLong(offset);
+			names.writeTo(out);
+			out.write(new byte[padding]);
+
+			for (int g = 0; g < matrix.getGeneCount(); g++)
+			{
+				for (long word : matrix.getRow(g))
+				{
+					out.writeLong(word);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a binary matrix file.
+	 * @param filename the file name
+	 * @return the reader with the matrix content
+	 * @throws IOException if the file cannot be read
+	 */
+	public static BinaryMatrixFile read(String filename) throws IOException
+	{
+		BinaryMatrixFile file = new BinaryMatrixFile();
+		Path path = Paths.get(filename);
+		long offset;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16)))
+		{
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+			{
+				throw new RuntimeException("Not a binary matrix file of a supported version: " + filename);
+			}
+
+			file.colNames = new String[in.readInt()];
+			file.genes = new String[in.readInt()];
+			offset = in.readLong();
+
+			for (int i = 0; i < file.colNames.length; i++)
+			{
+				file.colNames[i] = in.readUTF();
+			}
+			for (int g = 0; g < file.genes.length; g++)
+			{
+				file.genes[g] = in.readUTF();
+			}
+		}
+
+		int words = Matrix.wordCount(file.colNames.length);
+		file.rows = new long[file.genes.length][words];
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			if (channel.size() != offset + 8L * words * file.genes.length)
+			{
+				throw new RuntimeException("Binary matrix file is truncated: " + filename);
+			}
+
+			// Map the rows in windows of whole rows
+			int rowsPerWindow = (int) Math.max(1, MMAP_WINDOW / Math.max(1, 8L * words));
+			for (int from = 0; from < file.genes.length; from += rowsPerWindow)
+			{
+				int to = Math.min(file.genes.length, from + rowsPerWindow);
+				LongBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, offset + 8L * words * from,
+					8L * words * (to - from)).asLongBuffer();
+
+				for (int g = from; g < to; g++)
+				{
+					buf.get(file.rows[g]);
+				}
+			}
+		}
+
+		return file;
+	}
+
+	public String[] getColNames()
+	{
+		return colNames;
+	}
+
+	public String[] getGenes()
+	{
+		return genes;
+	}
+
+	public long[][] getRows()
+	{
+		return rows;
+	}
+}
@@ -0,0 +1,210 @@
+package org.panda.mutexdenovo;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A file that keeps the state of a permutation run, so that an interrupted run can resume, and a finished run can be
+ * extended with more iterations. The state has the meet counts, the active gene sets, and the random number streams
+ * and the shuffled matrices of the workers. The file is replaced atomically, hence an interruption while saving keeps
+ * the previous checkpoint.
+ * <p>
+ * A checkpoint belongs to a run configuration, which is identified by a hash of the matrices, the gene sets and the
+ * test settings. The seed and the random generator type are kept in the checkpoint and are reused when resuming.
+ */
+public class Checkpoint
+{
+	/**
+	 * Identifier at the beginning of the checkpoint files.
+	 */
+	private static final int MAGIC = 0x4D444E43;
+
+	private static final int VERSION = 2;
+
+	/**
+	 * Default number of iterations between two saves.
+	 */
+	public static final int DEFAULT_INTERVAL = 1000;
+
+	private Path file;
+
+	private int interval;
+
+	/**
+	 * Number of finished iterations in the loaded checkpoint.
+	 */
+	private int done;
+
+	private long seed;
+
+	private String randomType;
+
+	/**
+	 * States of the workers in the loaded checkpoint, to be restored when the workers are generated.
+	 */
+	private byte[][] workerStates;
+
+	/**
+	 * Constructor with the file and the save interval.
+	 * @param file the checkpoint file
+	 * @param interval number of iterations between two saves
+	 */
+	public Checkpoint(String file, int interval)
+	{
+		this.file = Paths.get(file);
+		this.interval = interval;
+	}
+
+	public int getInterval()
+	{
+		return interval;
+	}
+
+	public boolean exists()
+	{
+		return Files.exists(file);
+	}
+
+	/**
+	 * Generates the key of a run configuration.
+	 * @param description text that identifies the configuration
+	 * @return the key
+	 */
+	public static String getKey(String description)
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new RuntimeException(e);
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest(description.getBytes(StandardCharsets.UTF_8)))
+		{
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Saves the state of the run.
+	 * @param key key of the run configuration
+	 * @param seed seed of the run
+	 * @param randomType type of the random generator
+	 * @param done number of finished iterations
+	 * @param counts meet counts so far
+	 * @param active whether each gene set is active
+	 * @param workers the workers, all generated
+	 * @throws IOException if the file cannot be written
+	 */
+	void save(String key, long seed, String randomType, int done, MeetCounts counts, boolean[] active,
+		MutexTester.Worker[] workers) throws IOException
+	{
+		Path dir = file.toAbsolutePath().getParent();
+		Files.createDirectories(dir);
+		Path temp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp),
+			1 << 16)))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(key);
+			out.writeLong(seed);
+			out.writeUTF(randomType);
+			out.writeInt(done);
+			out.writeInt(workers.length);
+
+			counts.write(out);
+			for (boolean b : active)
+			{
+				out.writeBoolean(b);
+			}
+
+			for (MutexTester.Worker worker : workers)
+			{
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream state = new DataOutputStream(bytes);
+				worker.writeState(state);
+				state.flush();
+
+				out.writeInt(bytes.size());
+				bytes.writeTo(out);
+			}
+		}
+
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Loads the checkpoint into the given counts and active sets, and keeps the rest of the state to be queried.
+	 * @param key key of the run configuration, which should match the checkpoint
+	 * @param counts counts to load into
+	 * @param active active sets to load into
+	 * @throws IOException if the file cannot be read
+	 */
+	void load(String key, MeetCounts counts, boolean[] active) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16)))
+		{
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+			{
+				throw new RuntimeException("Not a checkpoint file of a supported version: " + file);
+			}
+			if (!in.readUTF().equals(key))
+			{
+				throw new RuntimeException("The checkpoint is of a different matrix, gene sets or settings: " + file);
+			}
+
+			seed = in.readLong();
+			randomType = in.readUTF();
+			done = in.readInt();
+			workerStates = new byte[in.readInt()][];
+
+			counts.read(in);
+			for (int i = 0; i < active.length; i++)
+			{
+				active[i] = in.readBoolean();
+			}
+
+			for (int w = 0; w < workerStates.length; w++)
+			{
+				workerStates[w] = new byte[in.readInt()];
+				in.readFully(workerStates[w]);
+			}
+		}
+	}
+
+	public int getDone()
+	{
+		return done;
+	}
+
+	public long getSeed()
+	{
+		return seed;
+	}
+
+	public String getRandomType()
+	{
+		return randomType;
+	}
+
+	/**
+	 * @return saved states of the workers, whose count is the number of workers of the run
+	 */
+	byte[][] getWorkerStates()
+	{
+		return workerStates;
+	}
+}
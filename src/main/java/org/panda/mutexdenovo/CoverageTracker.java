@@ -0,0 +1,192 @@
+package org.panda.mutexdenovo;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the number of alterations of each gene set in each sample up to date while the matrix is being shuffled. The
+ * shuffler reports every alteration that moves from one sample to another, and only the sets that contain the moved
+ * gene are updated. This way coverage of a set is always at hand, and the sample hits of a member gene can be read
+ * from its few alterations instead of scanning the whole matrix.
+ * <p>
+ * Gene sets with the same members in the matrix share a unit of the index, which is tracked once. The sample hits of
+ * a member gene are also calculated once per unit for each state of the matrix, and reused for the other sets of the
+ * unit.
+ */
+public class CoverageTracker
+{
+	/**
+	 * The gene sets on the matrix.
+	 */
+	private GeneSetIndex index;
+
+	/**
+	 * Indices of the tracked units that contain each gene, indexed by gene ID.
+	 */
+	private int[][] unitsOfGene;
+
+	/**
+	 * Number of alterations of each unit in each sample.
+	 */
+	private int[][] sampleHits;
+
+	/**
+	 * Number of samples covered by each unit.
+	 */
+	private int[] coverage;
+
+	/**
+	 * Sample hits of the members of each unit, and the state of the matrix that each is calculated on.
+	 */
+	private long[][] geneHits;
+	private long[][] geneHitsState;
+
+	/**
+	 * State of the matrix, which changes with every move.
+	 */
+	private long state = 1;
+
+	/**
+	 * Edges of the matrix, which reflect the swaps.
+	 */
+	private Matrix.Edges edges;
+
+	/**
+	 * Constructor with the matrix and the gene sets. The tracker should be given to the shuffler of the same matrix.
+	 * @param matrix the alteration matrix
+	 * @param index gene sets on the matrix
+	 */
+	public CoverageTracker(Matrix matrix, GeneSetIndex index)
+	{
+		this.index = index;
+
+		edges = matrix.getEdges();
+
+		unitsOfGene = new int[matrix.getGeneCount()][];
+		for (int g = 0; g < unitsOfGene.length; g++)
+		{
+			unitsOfGene[g] = index.getUnitsOfGene(g);
+		}
+
+		int units = index.getUnitCount();
+		sampleHits = new int[units][matrix.getSampleCount()];
+		coverage = new int[units];
+		geneHits = new long[units][];
+		geneHitsState = new long[units][];
+		for (int u = 0; u < units; u++)
+		{
+			geneHits[u] = new long[index.getUnitMembers(u).length];
+			geneHitsState[u] = new long[geneHits[u].length];
+		}
+		recount();
+	}
+
+	/**
+	 * Counts the hits of the gene sets on the current state of the matrix. This is needed only if the matrix is changed
+	 * without notifying the tracker.
+	 */
+	public void recount()
+	{
+		state++;
+
+		for (int u = 0; u < coverage.length; u++)
+		{
+			Arrays.fill(sampleHits[u], 0);
+			coverage[u] = 0;
+		}
+
+		for (int u = 0; u < coverage.length; u++)
+		{
+			for (int g : index.getUnitMembers(u))
+			{
+				for (int e = edges.geneStart[g]; e < edges.geneStart[g + 1]; e++)
+				{
+					if (sampleHits[u][edges.sampleIdx[e]]++ == 0) coverage[u]++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Updates the sets of the gene after an alteration of the gene moved to another sample.
+	 * @param gene gene ID
+	 * @param from the sample that lost the alteration
+	 * @param to the sample that gained the alteration
+	 */
+	public void move(int gene, int from, int to)
+	{
+		state++;
+
+		for (int u : unitsOfGene[gene])
+		{
+			int[] hits = sampleHits[u];
+			if (--hits[from] == 0) coverage[u]--;
+			if (hits[to]++ == 0) coverage[u]++;
+		}
+	}
+
+	/**
+	 * Stops updating the gene sets that are not active. Values of those sets are not valid afterwards. A unit is kept
+	 * while any of its sets is active.
+	 * @param active whether each gene set is active
+	 */
+	public void retain(boolean[] active)
+	{
+		boolean[] activeUnit = new boolean[coverage.length];
+		for (int i = 0; i < active.length; i++)
+		{
+			if (active[i]) activeUnit[index.getUnit(i)] = true;
+		}
+
+		for (int g = 0; g < unitsOfGene.length; g++)
+		{
+			unitsOfGene[g] = Arrays.stream(unitsOfGene[g]).filter(u -> activeUnit[u]).toArray();
+		}
+	}
+
+	/**
+	 * @param set index of the gene set
+	 * @return number of samples covered by the set
+	 */
+	public int getCoverage(int set)
+	{
+		return coverage[index.getUnit(set)];
+	}
+
+	/**
+	 * Gets the sum of the alterations of the set in the samples that the member gene is altered.
+	 * @param set index of the gene set
+	 * @param member position of the gene in the set
+	 * @return sample hits of the member
+	 */
+	public long getGeneHits(int set, int member)
+	{
+		int p = index.getMemberPositions(set)[member];
+		if (p < 0) return 0;
+
+		int u = index.getUnit(set);
+		if (geneHitsState[u][p] == state) return geneHits[u][p];
+
+		int g = index.getUnitMembers(u)[p];
+		int[] hits = sampleHits[u];
+		long sum = 0;
+		for (int e = edges.geneStart[g]; e < edges.geneStart[g + 1]; e++)
+		{
+			sum += hits[edges.sampleIdx[e]];
+		}
+
+		geneHits[u][p] = sum;
+		geneHitsState[u][p] = state;
+		return sum;
+	}
+
+	/**
+	 * @param set index of the gene set
+	 * @param member position of the gene in the set
+	 * @return true if the member gene has any alteration in the matrix
+	 */
+	public boolean isAltered(int set, int member)
+	{
+		int g = index.getMembers(set)[member];
+		return g >= 0 && edges.geneStart[g + 1] > edges.geneStart[g];
+	}
+}
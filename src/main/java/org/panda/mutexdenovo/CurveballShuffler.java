@@ -0,0 +1,177 @@
+package org.panda.mutexdenovo;
+
+/**
+ * Implements the Curveball algorithm of degree-preserving randomization from
+ * <a href="https://doi.org/10.1038/ncomms4114">https://doi.org/10.1038/ncomms4114</a>. At each trade, two genes
+ * pool the samples that only one of them has altered, and the pool is randomly redistributed between the genes, each
+ * getting back as many samples as it gave. A trade can move many alterations at once, where a swap of Shuffler moves
+ * only two, and it never fails, hence the matrix mixes in far fewer steps. The null model is the same as of Shuffler.
+ */
+public class CurveballShuffler implements MatrixRandomizer
+{
+	/**
+	 * Default number of trade rounds in a shuffle, where a round is as many trades as the genes, so that each gene
+	 * trades twice on average.
+	 */
+	public static final int DEFAULT_ROUNDS = 10;
+
+	/**
+	 * The alteration matrix.
+	 */
+	private Matrix matrix;
+
+	/**
+	 * Random number generator.
+	 */
+	private RandomSource r;
+
+	/**
+	 * Number of trade rounds in a shuffle.
+	 */
+	private int rounds;
+
+	/**
+	 * Optional tracker of gene set coverages that is notified of every moved alteration.
+	 */
+	private CoverageTracker tracker;
+
+	/**
+	 * Edge positions of the samples that only one of the trading genes has, reused between the trades.
+	 */
+	private int[] pool = new int[64];
+
+	/**
+	 * Number of trades so far, and the number of alteration pairs that they exchanged.
+	 */
+	private long trades;
+	private long exchanged;
+
+	/**
+	 * Constructor with the matrix, the random number generator and the number of trade rounds in a shuffle.
+	 * @param matrix the alteration matrix
+	 * @param r random number generator, to be used only by this shuffler
+	 * @param rounds number of trade rounds in a shuffle
+	 */
+	public CurveballShuffler(Matrix matrix, RandomSource r, int rounds)
+	{
+		this.matrix = matrix;
+		this.r = r;
+		this.rounds = rounds;
+	}
+
+	@Override
+	public void setTracker(CoverageTracker tracker)
+	{
+		this.tracker = tracker;
+	}
+
+	/**
+	 * @return number of trades so far
+	 */
+	@Override
+	public long getSwapAttempts()
+	{
+		return trades;
+	}
+
+	/**
+	 * @return number of alteration pairs that the trades exchanged between genes so far
+	 */
+	@Override
+	public long getSwapsAccepted()
+	{
+		return exchanged;
+	}
+
+	@Override
+	public void shuffle()
+	{
+		int genes = matrix.getGeneCount();
+		if (genes < 2) return;
+
+		Matrix.Edges edges = matrix.getEdges();
+		long n = (long) rounds * genes;
+		trades += n;
+
+		for (long i = 0; i < n; i++)
+		{
+			int g1 = r.nextInt(genes);
+			int g2 = r.nextInt(genes - 1);
+			if (g2 >= g1) g2++;
+
+			trade(edges, g1, g2);
+		}
+	}
+
+	/**
+	 * Redistributes the samples that only one of the genes has. After a random selection of the samples that the
+	 * first gene keeps, the samples that changed hands are paired, and each pair is exchanged as in a swap.
+	 */
+	private void trade(Matrix.Edges edges, int g1, int g2)
+	{
+		int[] sampleIdx = edges.sampleIdx;
+		int from1 = edges.geneStart[g1];
+		int to1 = edges.geneStart[g1 + 1];
+		int from2 = edges.geneStart[g2];
+		int to2 = edges.geneStart[g2 + 1];
+		if (from1 == to1 || from2 == to2) return;
+
+		long[] b1 = matrix.getRow(g1);
+		long[] b2 = matrix.getRow(g2);
+
+		if (pool.length < to1 - from1 + to2 - from2) pool = new int[2 * (to1 - from1 + to2 - from2)];
+
+		// Collect the edges of the samples that are not shared
+		int n1 = 0;
+		for (int e = from1; e < to1; e++)
+		{
+			if (!Matrix.isSet(b2, sampleIdx[e])) pool[n1++] = e;
+		}
+		if (n1 == 0) return;
+
+		int size = n1;
+		for (int e = from2; e < to2; e++)
+		{
+			if (!Matrix.isSet(b1, sampleIdx[e])) pool[size++] = e;
+		}
+		if (size == n1) return;
+
+		// Select the samples of the first gene with a partial Fisher-Yates shuffle
+		for (int k = 0; k < n1; k++)
+		{
+			int m = k + r.nextInt(size - k);
+			int t = pool[k];
+			pool[k] = pool[m];
+			pool[m] = t;
+		}
+
+		// Samples of the second gene that went to the first gene are as many as the reverse, pair them up
+		int k2 = n1;
+		for (int k = 0; k < n1; k++)
+		{
+			int e2 = pool[k];
+			if (e2 < from2 || e2 >= to2) continue;
+
+			while (pool[k2] < from1 || pool[k2] >= to1) k2++;
+			int e1 = pool[k2++];
+
+			int s1 = sampleIdx[e1];
+			int s2 = sampleIdx[e2];
+
+			Matrix.flip(b1, s1);
+			Matrix.flip(b1, s2);
+			Matrix.flip(b2, s1);
+			Matrix.flip(b2, s2);
+
+			sampleIdx[e1] = s2;
+			sampleIdx[e2] = s1;
+			exchanged++;
+
+			if (tracker != null)
+			{
+				tracker.move(g1, s1, s2);
+				tracker.move(g2, s2, s1);
+			}
+		}
+	}
+}
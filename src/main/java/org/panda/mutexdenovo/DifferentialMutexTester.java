@@ -1,175 +1,436 @@
 package org.panda.mutexdenovo;
 
 import org.panda.utility.FileUtil;
-import org.panda.utility.Progress;
 
-import java.io.BufferedWriter;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.*;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
- * Tests if the given gene sets are differentially mutually exclusive between the given two matrices.
+ * Tests if the given gene sets are differentially mutually exclusive between the given two matrices. The null model
+ * either shuffles both matrices, or permutes the sample labels between them.
  */
 public class DifferentialMutexTester extends MutexTester
 {
+	/**
+	 * Null model that shuffles both matrices, keeping the alteration frequencies of genes and samples in each.
+	 */
+	public static final String SHUFFLE = "shuffle";
+
+	/**
+	 * Null model that permutes the sample labels between the two matrices.
+	 */
+	public static final String LABELS = "labels";
+
 	/**
 	 * Second alteration matrix used as control.
 	 */
 	private Matrix ctrlMatrix;
 
+	/**
+	 * Gene sets on the control matrix.
+	 */
+	private GeneSetIndex ctrlIndex;
+
+	/**
+	 * Type of the null model.
+	 */
+	private String nullModel = SHUFFLE;
+
+	/**
+	 * Merged samples of the label permutation null model.
+	 */
+	private LabelPermutation labelPermutation;
+
 	public DifferentialMutexTester(Matrix testMatrix, Matrix ctrlMatrix, Map<String, Set<String>> geneSets,
 		String outDir, int iteration)
 	{
-		super(testMatrix, geneSets, outDir, iteration);
+		this(testMatrix, ctrlMatrix, Collections.singletonList(geneSets), Collections.singletonList(outDir), iteration);
+	}
+
+	/**
+	 * Constructor with several collections of gene sets, which are tested on the same shuffled matrices.
+	 */
+	public DifferentialMutexTester(Matrix testMatrix, Matrix ctrlMatrix, List<Map<String, Set<String>>> collections,
+		List<String> outDirs, int iteration)
+	{
+		super(testMatrix, collections, outDirs, iteration);
 		this.ctrlMatrix = ctrlMatrix;
 	}
 
+	/**
+	 * Sets the null model.
+	 * @param nullModel either shuffle or labels
+	 */
+	public void setNullModel(String nullModel)
+	{
+		if (!nullModel.equals(SHUFFLE) && !nullModel.equals(LABELS))
+		{
+			throw new RuntimeException("Unknown differential null model: " + nullModel + ". Possible values: " +
+				SHUFFLE + ", " + LABELS);
+		}
+		this.nullModel = nullModel;
+	}
+
 	public void run() throws IOException
 	{
+		if (nullModel.equals(LABELS) && (!randomizerType.equals(MatrixRandomizer.SWAP) || swapRounds > 0 ||
+			calibrateSwapRounds || nullModelCache != null))
+		{
+			throw new RuntimeException("The label permutation null model does not shuffle the matrices, hence " +
+				"cannot be used with --randomizer, --swap-rounds or --null-cache.");
+		}
+
+		// Permuting the labels keeps the number of test samples, which should include the samples without alterations
+		if (nullModel.equals(LABELS) && (matrix.isUnalteredSamplesOmitted() || ctrlMatrix.isUnalteredSamplesOmitted()))
+		{
+			throw new RuntimeException("The label permutation null model needs all samples of the matrices, but a " +
+				"mutation list leaves out the samples without mutations. Give the mutation list with its sample list, " +
+				"as in mutations.txt,samples.txt.");
+		}
+
 		// Generate output directories if do not exist
-		FileUtil.mkdirs(outDir);
+		outDirs.forEach(FileUtil::mkdirs);
+
+		metrics = new RunMetrics();
+		RunMetrics.Phase phase = metrics.start(OBSERVED_PHASE);
+
+		indexGeneSets();
 
 		// Record current coverages and overlaps
 
-		Map<String, Integer> currentTestCovMap = new HashMap<>();
-		Map<String, Integer> currentCtrlCovMap = new HashMap<>();
-		Map<String, Integer> currentTestOvMap = new HashMap<>();
-		Map<String, Integer> currentCtrlOvMap = new HashMap<>();
+		int[] currentTestCov = new int[setNames.length];
+		int[] currentCtrlCov = new int[setNames.length];
+		int[] currentTestOv = new int[setNames.length];
+		int[] currentCtrlOv = new int[setNames.length];
 
-		geneSets.forEach((id, genes) ->
+		for (int i = 0; i < setNames.length; i++)
 		{
-			currentTestCovMap.put(id, matrix.countCoverage(genes));
-			currentCtrlCovMap.put(id, ctrlMatrix.countCoverage(genes));
-			currentTestOvMap.put(id, matrix.countOverlap(genes));
-			currentCtrlOvMap.put(id, ctrlMatrix.countOverlap(genes));
-		});
+			Set<String> genes = setGenes.get(i);
+			currentTestCov[i] = matrix.countCoverage(genes);
+			currentCtrlCov[i] = ctrlMatrix.countCoverage(genes);
+			currentTestOv[i] = matrix.countOverlap(genes);
+			currentCtrlOv[i] = ctrlMatrix.countOverlap(genes);
+		}
+
+		phase.end();
 
 		// Calculate differential mutex and cooc p-values by shuffling
-		Map<String, Double>[] pvals = getMutexCoocPvals();
+		double[][] pvals = getMutexCoocPvals();
 
 		// Write results as a list
-
-		BufferedWriter writer = FileUtil.newBufferedWriter(outDir + "/results.txt");
-
-		writer.write("ID\tGenes size\tCoverage Test\tCoverage Ctrl\tOverlap Test\tOverlap Ctrl\tDifferential mutex p-value\tDifferential cooc p-value");
-		geneSets.keySet().stream().sorted(Comparator.comparing(n -> pvals[0].get(n))).forEach(id -> FileUtil.lnwrite(
-			id + "\t" + geneSets.get(id).size() + "\t" + currentTestCovMap.get(id) + "\t" + currentCtrlCovMap.get(id) + "\t" +
-				currentTestOvMap.get(id) + "\t" + currentCtrlOvMap.get(id) + "\t" + pvals[0].get(id) + "\t" + pvals[1].get(id), writer));
-
-		writer.close();
+		writeResults("Coverage Test\tCoverage Ctrl\tOverlap Test\tOverlap Ctrl\tDifferential mutex p-value\t" +
+			"Differential cooc p-value", i -> currentTestCov[i] + "\t" + currentCtrlCov[i] + "\t" +
+			currentTestOv[i] + "\t" + currentCtrlOv[i], pvals);
 	}
 
 	/**
-	 * Calculates differential mutex and cooc p-values by shuffling the matrices iteratively. Also generates individual
-	 * p-values for members of each gene set in the given output directory.
-	 *
-	 * @return p-values
-	 * @throws IOException if cannot write to the output directory
+	 * Fills in the observed coverage differences of gene sets and the observed sample hit differences of their
+	 * members, between the test and control matrices. The statistics are read from trackers of the original matrices,
+	 * the same way the workers read them from the shuffled ones.
 	 */
-	protected Map<String, Double>[] getMutexCoocPvals() throws IOException
+	@Override
+	protected void recordObservedStatistics()
 	{
-		// Get edge representation of the matrices
-		List<Matrix.Edge> edgesTest = matrix.getEdges();
-		List<Matrix.Edge> edgesCtrl = ctrlMatrix.getEdges();
+		index = new GeneSetIndex(matrix, setMembers);
+		ctrlIndex = new GeneSetIndex(ctrlMatrix, setMembers);
+		observedCoverage = new long[setNames.length];
+		observedGeneHits = new long[setNames.length][];
 
-		// Initiate current coverage maps
-		Map<String, Map<Integer, Long>> testCoverageMap = geneSets.keySet().stream().collect(
-			Collectors.toMap(Function.identity(), name -> getSampleHitCounts(edgesTest, geneSets.get(name))));
+		CoverageTracker trackerTest = new CoverageTracker(matrix, index);
+		CoverageTracker trackerCtrl = new CoverageTracker(ctrlMatrix, ctrlIndex);
 
-		Map<String, Map<Integer, Long>> ctrlCoverageMap = geneSets.keySet().stream().collect(
-			Collectors.toMap(Function.identity(), name -> getSampleHitCounts(edgesCtrl, geneSets.get(name))));
+		for (int i = 0; i < setNames.length; i++)
+		{
+			observedCoverage[i] = trackerTest.getCoverage(i) - trackerCtrl.getCoverage(i);
+			observedGeneHits[i] = new long[setMembers[i].length];
+			for (int j = 0; j < setMembers[i].length; j++)
+			{
+				observedGeneHits[i][j] = trackerTest.getGeneHits(i, j) - trackerCtrl.getGeneHits(i, j);
+			}
+		}
 
-		// Initiate group meet maps
+		if (nullModel.equals(LABELS)) labelPermutation = new LabelPermutation(matrix, ctrlMatrix, setMembers);
+	}
 
-		Map<String, Integer> mutexMeetMap = geneSets.keySet().stream().collect(
-			Collectors.toMap(Function.identity(), name -> 0));
+	/**
+	 * Calibrates the swap rounds for both matrices, and uses the larger, since both are shuffled the same.
+	 */
+	@Override
+	protected int calibrate() throws IOException
+	{
+		return Math.max(super.calibrate(), calibrate(ctrlMatrix, ctrlIndex));
+	}
 
-		Map<String, Integer> coocMeetMap = geneSets.keySet().stream().collect(
-			Collectors.toMap(Function.identity(), name -> 0));
+	@Override
+	protected String describeRun()
+	{
+		String description = super.describeRun() + "\n" + ctrlMatrix.getContentHash();
+		return nullModel.equals(SHUFFLE) ? description : description + "\nnull " + nullModel;
+	}
 
-		// Initiate gene-specific meet maps
+	@Override
+	protected String getMatrixHash()
+	{
+		return super.getMatrixHash() + "," + ctrlMatrix.getContentHash();
+	}
 
-		Map<String, Map<String, Integer>> geneMutexMeetMaps = geneSets.keySet().stream().collect(Collectors.toMap(Function.identity(),
-			name -> geneSets.get(name).stream().collect(Collectors.toMap(Function.identity(), gene -> 0))));
+	/**
+	 * Checks if the workers can shuffle the control matrix on a helper thread, while they shuffle the test matrix. This
+	 * is when there are enough processors for both threads of all workers.
+	 */
+	private boolean shuffleConcurrently()
+	{
+		return 2 * threads <= Runtime.getRuntime().availableProcessors();
+	}
 
-		Map<String, Map<String, Integer>> geneCoocMeetMaps = geneSets.keySet().stream().collect(Collectors.toMap(Function.identity(),
-			name -> geneSets.get(name).stream().collect(Collectors.toMap(Function.identity(), gene -> 0))));
+	/**
+	 * Generates a worker that shuffles its own copies of the test and control matrices. Each matrix has its own random
+	 * number stream, hence the matrices can be shuffled at the same time, and the results do not depend on that. Both
+	 * are evaluated together in one pass over the gene sets.
+	 *
+	 * @param random random number stream of the worker
+	 * @param stream index of the worker
+	 * @return a new worker
+	 * @throws IOException if the null model cache cannot be opened
+	 */
+	@Override
+	protected Worker createWorker(RandomSource random, int stream) throws IOException
+	{
+		if (nullModel.equals(LABELS)) return createLabelWorker(random);
+
+		Matrix copyTest = matrix.copy();
+		Matrix copyCtrl = ctrlMatrix.copy();
+		RandomSource randomTest = random.split();
+		RandomSource randomCtrl = random.split();
+		MatrixRandomizer shufflerTest = createRandomizer(matrix, copyTest, randomTest, stream);
+		MatrixRandomizer shufflerCtrl = createRandomizer(ctrlMatrix, copyCtrl, randomCtrl, stream);
+		CoverageTracker trackerTest = new CoverageTracker(copyTest, index);
+		CoverageTracker trackerCtrl = new CoverageTracker(copyCtrl, ctrlIndex);
+		shufflerTest.setTracker(trackerTest);
+		shufflerCtrl.setTracker(trackerCtrl);
+		RunMetrics.WorkerMetrics workerMetrics = new RunMetrics.WorkerMetrics();
+
+		ExecutorService helper = !shuffleConcurrently() ? null : Executors.newSingleThreadExecutor(r ->
+		{
+			Thread thread = new Thread(r, "control-shuffler-" + stream);
+			thread.setDaemon(true);
+			return thread;
+		});
 
-		// Get current gene to sample indices
+		return new Worker()
+		{
+			@Override
+			public void iterate(MeetCounts counts) throws IOException
+			{
+				workerMetrics.startIteration();
+				if (helper == null)
+				{
+					shufflerTest.shuffle();
+					shufflerCtrl.shuffle();
+				}
+				else
+				{
+					Future<Void> ctrl = helper.submit(() ->
+					{
+						workerMetrics.shuffleOnHelper(shufflerCtrl);
+						return null;
+					});
+					shufflerTest.shuffle();
+					await(ctrl);
+				}
+				workerMetrics.endShuffle();
+
+				for (int i = 0; i < setNames.length; i++)
+				{
+					if (!active[i]) continue;
+
+					counts.recordSet(i, trackerTest.getCoverage(i) - trackerCtrl.getCoverage(i), observedCoverage[i]);
+
+					for (int j = 0; j < setMembers[i].length; j++)
+					{
+						if (trackerTest.isAltered(i, j))
+						{
+							long hit = trackerTest.getGeneHits(i, j) - trackerCtrl.getGeneHits(i, j);
+							counts.recordGene(i, j, hit, observedGeneHits[i][j]);
+						}
+					}
+				}
+				workerMetrics.endIteration();
+			}
+
+			@Override
+			public void retain(boolean[] active)
+			{
+				trackerTest.retain(active);
+				trackerCtrl.retain(active);
+			}
 
-		Map<String, Map<String, Set<Integer>>> origGeneToIndicesTest = geneSets.keySet().stream().collect(Collectors.toMap(Function.identity(),
-			name -> getGeneToIndices(edgesTest, geneSets.get(name))));
+			@Override
+			public RunMetrics.WorkerMetrics getMetrics()
+			{
+				workerMetrics.setSwaps(shufflerTest, shufflerCtrl);
+				return workerMetrics;
+			}
 
-		Map<String, Map<String, Set<Integer>>> origGeneToIndicesCtrl = geneSets.keySet().stream().collect(Collectors.toMap(Function.identity(),
-			name -> getGeneToIndices(edgesCtrl, geneSets.get(name))));
+			@Override
+			public void writeState(DataOutput out) throws IOException
+			{
+				MutexTester.writeState(out, randomTest, copyTest);
+				MutexTester.writeState(out, randomCtrl, copyCtrl);
+			}
 
-		// Initiate gene-specific current sample hits
+			@Override
+			public void readState(DataInput in) throws IOException
+			{
+				MutexTester.readState(in, randomTest, copyTest);
+				MutexTester.readState(in, randomCtrl, copyCtrl);
+				trackerTest.recount();
+				trackerCtrl.recount();
+			}
+
+			@Override
+			public void close() throws IOException
+			{
+				if (helper != null) helper.shutdown();
+				shufflerTest.close();
+				shufflerCtrl.close();
+			}
 
-		Map<String, Map<String, Long>> geneSampleHitMaps = geneSets.keySet().stream().collect(
-			Collectors.toMap(Function.identity(), name -> geneSets.get(name).stream().collect(Collectors.toMap(
-				Function.identity(), gene ->
-					getSampleHitsForGeneInGroup(origGeneToIndicesTest.get(name), gene, testCoverageMap.get(name)) -
-						getSampleHitsForGeneInGroup(origGeneToIndicesCtrl.get(name), gene, ctrlCoverageMap.get(name))))));
+			@Override
+			public void abort() throws IOException
+			{
+				if (helper != null) helper.shutdown();
+				try
+				{
+					shufflerTest.abort();
+				}
+				finally
+				{
+					shufflerCtrl.abort();
+				}
+			}
+		};
+	}
 
-		Shuffler shufflerTest = new Shuffler(matrix);
-		Shuffler shufflerCtrl = new Shuffler(ctrlMatrix);
+	/**
+	 * Generates a worker that permutes the sample labels between the matrices, instead of shuffling them.
+	 *
+	 * @param random random number stream of the worker
+	 * @return a new worker
+	 */
+	private Worker createLabelWorker(RandomSource random)
+	{
+		int[] order = labelPermutation.createOrder();
+		long[] labels = labelPermutation.createLabels();
+		Matrix.Edges edges = matrix.getEdges();
+		RunMetrics.WorkerMetrics workerMetrics = new RunMetrics.WorkerMetrics();
 
-		// Start shuffling and recording
-		Progress prg = new Progress(iteration, "Shuffling the matrices " + iteration + " times");
-		for (int i = 0; i < iteration; i++)
+		return new Worker()
 		{
-			shufflerTest.shuffle();
-			shufflerCtrl.shuffle();
-
-			testCoverageMap.forEach((name, origTestCov) ->
+			@Override
+			public void iterate(MeetCounts counts)
 			{
-				Map<Integer, Long> origCtrlCov = ctrlCoverageMap.get(name);
-				int origCov = origTestCov.size() - origCtrlCov.size();
-
-				Map<Integer, Long> sampleHitCountsTest = getSampleHitCounts(edgesTest, geneSets.get(name));
-				Map<Integer, Long> sampleHitCountsCtrl = getSampleHitCounts(edgesCtrl, geneSets.get(name));
-
-				int cov = sampleHitCountsTest.size() - sampleHitCountsCtrl.size();
-
-				if (cov >= origCov) mutexMeetMap.put(name, mutexMeetMap.get(name) + 1);
-				if (cov <= origCov) coocMeetMap.put(name, coocMeetMap.get(name) + 1);
-
-				Map<String, Set<Integer>> geneToIndicesTest = getGeneToIndices(edgesTest, geneSets.get(name));
-				Map<String, Set<Integer>> geneToIndicesCtrl = getGeneToIndices(edgesCtrl, geneSets.get(name));
+				workerMetrics.startIteration();
+				labelPermutation.permute(random, order, labels);
+				workerMetrics.endShuffle();
+
+				for (int i = 0; i < setNames.length; i++)
+				{
+					if (!active[i]) continue;
+
+					counts.recordSet(i, labelPermutation.getCoverageDifference(i, labels), observedCoverage[i]);
+
+					int[] members = index.getMembers(i);
+					for (int j = 0; j < members.length; j++)
+					{
+						// Same members as with shuffling, which are the ones altered in the test matrix
+						int g = members[j];
+						if (g >= 0 && edges.geneStart[g + 1] > edges.geneStart[g])
+						{
+							long hit = labelPermutation.getGeneHitDifference(i, j, labels);
+							counts.recordGene(i, j, hit, observedGeneHits[i][j]);
+						}
+					}
+				}
+				workerMetrics.endIteration();
+			}
+
+			@Override
+			public void retain(boolean[] active)
+			{
+				// Labels are evaluated only for the active sets
+			}
 
-				updateGeneMutexMeetMap(geneToIndicesTest, geneToIndicesCtrl, sampleHitCountsTest, sampleHitCountsCtrl, geneMutexMeetMaps.get(name), geneSampleHitMaps.get(name));
-				updateGeneCoocMeetMap(geneToIndicesTest, geneToIndicesCtrl, sampleHitCountsTest, sampleHitCountsCtrl, geneCoocMeetMaps.get(name), geneSampleHitMaps.get(name));
-			});
-			prg.tick();
-		}
+			@Override
+			public RunMetrics.WorkerMetrics getMetrics()
+			{
+				return workerMetrics;
+			}
 
-		return calculateAndWritePvalues(mutexMeetMap, coocMeetMap, geneMutexMeetMaps, geneCoocMeetMaps);
+			@Override
+			public void writeState(DataOutput out) throws IOException
+			{
+				for (long s : random.getState())
+				{
+					out.writeLong(s);
+				}
+				for (int s : order)
+				{
+					out.writeInt(s);
+				}
+			}
+
+			@Override
+			public void readState(DataInput in) throws IOException
+			{
+				long[] state = random.getState();
+				for (int i = 0; i < state.length; i++)
+				{
+					state[i] = in.readLong();
+				}
+				random.setState(state);
+
+				for (int k = 0; k < order.length; k++)
+				{
+					order[k] = in.readInt();
+				}
+			}
+
+			@Override
+			public void close()
+			{
+			}
+		};
 	}
 
-	private void updateGeneMutexMeetMap(
-		Map<String, Set<Integer>> geneToIndicesTest, Map<String, Set<Integer>> geneToIndicesCtrl,
-		Map<Integer, Long> sampleHitCountsTest, Map<Integer, Long> sampleHitCountsCtrl,
-		Map<String, Integer> meetMap, Map<String, Long> origGeneSampleHits)
+	/**
+	 * Waits for the shuffling on the helper thread, and passes on its failure.
+	 */
+	private static void await(Future<Void> future) throws IOException
 	{
-		geneToIndicesTest.keySet().forEach(gene ->
+		try
 		{
-			long hit = getSampleHitsForGeneInGroup(geneToIndicesTest, gene, sampleHitCountsTest) - getSampleHitsForGeneInGroup(geneToIndicesCtrl, gene, sampleHitCountsCtrl);
-			if (hit <= origGeneSampleHits.get(gene)) meetMap.put(gene, meetMap.get(gene) + 1);
-		});
-	}
-
-	private void updateGeneCoocMeetMap(
-		Map<String, Set<Integer>> geneToIndicesTest, Map<String, Set<Integer>> geneToIndicesCtrl,
-		Map<Integer, Long> sampleHitCountsTest, Map<Integer, Long> sampleHitCountsCtrl,
-		Map<String, Integer> meetMap, Map<String, Long> origGeneSampleHits)
-	{
-		geneToIndicesTest.keySet().forEach(gene ->
+			future.get();
+		}
+		catch (InterruptedException e)
 		{
-			long hit = getSampleHitsForGeneInGroup(geneToIndicesTest, gene, sampleHitCountsTest) - getSampleHitsForGeneInGroup(geneToIndicesCtrl, gene, sampleHitCountsCtrl);
-			if (hit >= origGeneSampleHits.get(gene)) meetMap.put(gene, meetMap.get(gene) + 1);
-		});
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while shuffling the control matrix.");
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new RuntimeException("Shuffling the control matrix failed.", cause);
+		}
 	}
-
 }
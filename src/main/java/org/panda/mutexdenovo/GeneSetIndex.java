@@ -0,0 +1,161 @@
+package org.panda.mutexdenovo;
+
+import java.util.*;
+
+/**
+ * Integer representation of the gene sets on an alteration matrix. Members of the sets are mapped to gene IDs of the
+ * matrix, and each gene is mapped to the sets that contain it.
+ * <p>
+ * Gene sets that overlap and nest, as pathways do, often have the same members on the matrix, since most genes are
+ * not altered. Such sets are represented by a single unit, which is the distinct set of their members in the matrix,
+ * and statistics are tracked and evaluated once per unit. Hence the work of the tracker scales with the distinct
+ * member sets, not with the number of gene sets.
+ */
+public class GeneSetIndex
+{
+	/**
+	 * Gene IDs of the members of each set. Members that are not in the matrix have -1.
+	 */
+	private int[][] members;
+
+	/**
+	 * The unit of each set.
+	 */
+	private int[] unitOfSet;
+
+	/**
+	 * Sorted gene IDs of the members of each unit, which are in the matrix.
+	 */
+	private int[][] unitMembers;
+
+	/**
+	 * Position of each member of each set in the members of its unit, or -1 if the member is not in the matrix.
+	 */
+	private int[][] memberPositions;
+
+	/**
+	 * Indices of the units that contain each gene, indexed by gene ID.
+	 */
+	private int[][] unitsOfGene;
+
+	/**
+	 * Constructor with the matrix and the set members.
+	 * @param matrix the alteration matrix that defines the gene IDs
+	 * @param setMembers members of each gene set
+	 */
+	public GeneSetIndex(Matrix matrix, String[][] setMembers)
+	{
+		members = new int[setMembers.length][];
+		unitOfSet = new int[setMembers.length];
+		memberPositions = new int[setMembers.length][];
+
+		Map<List<Integer>, Integer> units = new HashMap<>();
+		List<int[]> unitList = new ArrayList<>();
+
+		for (int i = 0; i < setMembers.length; i++)
+		{
+			members[i] = new int[setMembers[i].length];
+			for (int j = 0; j < setMembers[i].length; j++)
+			{
+				members[i][j] = matrix.getGeneIndex(setMembers[i][j]);
+			}
+
+			int[] genes = Arrays.stream(members[i]).filter(g -> g >= 0).sorted().distinct().toArray();
+			List<Integer> key = new ArrayList<>(genes.length);
+			for (int g : genes)
+			{
+				key.add(g);
+			}
+
+			Integer unit = units.get(key);
+			if (unit == null)
+			{
+				unit = unitList.size();
+				units.put(key, unit);
+				unitList.add(genes);
+			}
+			unitOfSet[i] = unit;
+
+			memberPositions[i] = Arrays.stream(members[i])
+				.map(g -> g < 0 ? -1 : Arrays.binarySearch(genes, g)).toArray();
+		}
+
+		unitMembers = unitList.toArray(new int[unitList.size()][]);
+
+		List<List<Integer>> lists = new ArrayList<>();
+		for (int g = 0; g < matrix.getGeneCount(); g++)
+		{
+			lists.add(new ArrayList<>());
+		}
+		for (int u = 0; u < unitMembers.length; u++)
+		{
+			for (int g : unitMembers[u])
+			{
+				lists.get(g).add(u);
+			}
+		}
+
+		unitsOfGene = lists.stream().map(l -> l.stream().mapToInt(Integer::intValue).toArray()).toArray(int[][]::new);
+	}
+
+	/**
+	 * @return number of gene sets
+	 */
+	public int size()
+	{
+		return members.length;
+	}
+
+	/**
+	 * @param set index of the gene set
+	 * @return gene IDs of the set members, where -1 means the member is not in the matrix
+	 */
+	public int[] getMembers(int set)
+	{
+		return members[set];
+	}
+
+	/**
+	 * @return number of units, which is the number of distinct member sets in the matrix
+	 */
+	public int getUnitCount()
+	{
+		return unitMembers.length;
+	}
+
+	/**
+	 * @param set index of the gene set
+	 * @return index of the unit of the set
+	 */
+	public int getUnit(int set)
+	{
+		return unitOfSet[set];
+	}
+
+	/**
+	 * @param unit index of the unit
+	 * @return sorted gene IDs of the unit members
+	 */
+	public int[] getUnitMembers(int unit)
+	{
+		return unitMembers[unit];
+	}
+
+	/**
+	 * @param set index of the gene set
+	 * @return position of each set member in the members of its unit, where -1 means the member is not in the matrix
+	 */
+	public int[] getMemberPositions(int set)
+	{
+		return memberPositions[set];
+	}
+
+	/**
+	 * @param gene gene ID
+	 * @return indices of the units that contain the gene
+	 */
+	public int[] getUnitsOfGene(int gene)
+	{
+		return unitsOfGene[gene];
+	}
+}
@@ -36,14 +36,17 @@ public class GeneSetLoader
 	public Map<String, Set<String>> loadSFARI()
 	{
 		Map<String, Set<String>> geneSets = new HashMap<>();
+		ResourceSnapshot snapshot = ResourceSnapshot.get();
 
 		for (int i = 1; i <= 6; i++)
 		{
-			Set<String> genes = SFARI.get().getGenesWithMaxScore(i);
+			Set<String> genes = snapshot != null ? snapshot.getSFARIGenesWithMaxScore(i) :
+				SFARI.get().getGenesWithMaxScore(i);
 			geneSets.put("SFARI-1-to-" + i, genes);
 		}
 
-		geneSets.put("SFARI-all", new HashSet<>(SFARI.get().getAllGenes()));
+		geneSets.put("SFARI-all", snapshot != null ? snapshot.getAllSFARIGenes() :
+			new HashSet<>(SFARI.get().getAllGenes()));
 
 		cleanAndremoveRedundant(geneSets);
 		return geneSets;
@@ -60,11 +63,19 @@ public class GeneSetLoader
 	}
 
 	/**
-	 * Load Reactome gene sets.
+	 * Load Reactome gene sets. The resource snapshot is used if it has the genes of the matrices.
 	 */
 	public Map<String, Set<String>> loadReactome()
 	{
-		Map<String, Set<String>> orig = ReactomePathway.get().getCroppedPathways(getRelevantGenes());
+		Set<String> genes = getRelevantGenes();
+		ResourceSnapshot snapshot = ResourceSnapshot.get();
+		if (snapshot != null)
+		{
+			if (snapshot.hasGenes(genes)) return snapshot.getCroppedPathways(genes);
+			System.out.println("The resource snapshot does not have all genes of the matrices, parsing Reactome.");
+		}
+
+		Map<String, Set<String>> orig = ReactomePathway.get().getCroppedPathways(genes);
 
 		Map<String, Set<String>> sets = new HashMap<>();
 
@@ -0,0 +1,203 @@
+package org.panda.mutexdenovo;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Null model of the differential test that permutes the sample labels instead of shuffling the matrices. The test and
+ * control samples are merged once, and each randomization draws which of the merged samples are labeled as test,
+ * keeping the number of test samples. Alterations of the samples are not changed, hence the hits of a gene set in each
+ * sample are calculated once, and a randomization costs only as much as the samples and the covered samples of the
+ * gene sets. This null is less strict than shuffling, since it keeps the alteration frequencies of the genes in the
+ * merged cohort instead of in each matrix.
+ * <p>
+ * The merged data is shared by the workers. Each worker keeps its own labels, in an order of the merged samples and a
+ * bitset of the samples labeled as test.
+ */
+public class LabelPermutation
+{
+	/**
+	 * Number of test samples, which come first in the merged samples.
+	 */
+	private int testSamples;
+
+	/**
+	 * Number of merged samples.
+	 */
+	private int samples;
+
+	/**
+	 * Merged samples covered by each gene set.
+	 */
+	private int[][] covered;
+
+	/**
+	 * Merged samples that each member of each gene set is altered, and the hits of the set in those samples.
+	 */
+	private int[][][] memberSamples;
+	private int[][][] memberHits;
+
+	/**
+	 * Constructor with the two matrices and the gene sets.
+	 * @param test the test matrix
+	 * @param ctrl the control matrix
+	 * @param setMembers members of each gene set
+	 */
+	public LabelPermutation(Matrix test, Matrix ctrl, String[][] setMembers)
+	{
+		testSamples = test.getSampleCount();
+		samples = testSamples + ctrl.getSampleCount();
+		covered = new int[setMembers.length][];
+		memberSamples = new int[setMembers.length][][];
+		memberHits = new int[setMembers.length][][];
+
+		int[] hits = new int[samples];
+		int[] list = new int[samples];
+		for (int i = 0; i < setMembers.length; i++)
+		{
+			String[] members = setMembers[i];
+			Arrays.fill(hits, 0);
+
+			for (String gene : members)
+			{
+				forEachSample(test, ctrl, gene, s -> hits[s]++);
+			}
+
+			covered[i] = getSamples(hits);
+			memberSamples[i] = new int[members.length][];
+			memberHits[i] = new int[members.length][];
+
+			for (int j = 0; j < members.length; j++)
+			{
+				int[] size = new int[1];
+				forEachSample(test, ctrl, members[j], s -> list[size[0]++] = s);
+
+				memberSamples[i][j] = Arrays.copyOf(list, size[0]);
+				memberHits[i][j] = Arrays.stream(memberSamples[i][j]).map(s -> hits[s]).toArray();
+			}
+		}
+	}
+
+	/**
+	 * @return samples with any hits
+	 */
+	private static int[] getSamples(int[] hits)
+	{
+		int n = 0;
+		for (int h : hits)
+		{
+			if (h > 0) n++;
+		}
+		int[] list = new int[n];
+		n = 0;
+		for (int s = 0; s < hits.length; s++)
+		{
+			if (hits[s] > 0) list[n++] = s;
+		}
+		return list;
+	}
+
+	/**
+	 * Runs the action for each merged sample that the gene is altered, first in the test matrix, then in the control.
+	 */
+	private void forEachSample(Matrix test, Matrix ctrl, String gene, IntConsumer action)
+	{
+		int g = test.getGeneIndex(gene);
+		if (g >= 0)
+		{
+			Matrix.Edges edges = test.getEdges();
+			for (int e = edges.geneStart[g]; e < edges.geneStart[g + 1]; e++)
+			{
+				action.accept(edges.sampleIdx[e]);
+			}
+		}
+
+		g = ctrl.getGeneIndex(gene);
+		if (g >= 0)
+		{
+			Matrix.Edges edges = ctrl.getEdges();
+			for (int e = edges.geneStart[g]; e < edges.geneStart[g + 1]; e++)
+			{
+				action.accept(testSamples + edges.sampleIdx[e]);
+			}
+		}
+	}
+
+	/**
+	 * @return initial order of the merged samples for a worker
+	 */
+	public int[] createOrder()
+	{
+		int[] order = new int[samples];
+		for (int s = 0; s < samples; s++)
+		{
+			order[s] = s;
+		}
+		return order;
+	}
+
+	/**
+	 * @return bitset of the merged samples for a worker to keep its test labels
+	 */
+	public long[] createLabels()
+	{
+		return new long[Matrix.wordCount(samples)];
+	}
+
+	/**
+	 * Draws new labels. The first samples of the order are labeled as test after a partial Fisher-Yates shuffle, which
+	 * gives each subset of samples the same chance, whatever the previous order was.
+	 * @param r random number generator
+	 * @param order order of the merged samples of the worker, which is updated
+	 * @param labels bitset of the test samples of the worker, which is updated
+	 */
+	public void permute(RandomSource r, int[] order, long[] labels)
+	{
+		for (int k = 0; k < testSamples; k++)
+		{
+			int m = k + r.nextInt(samples - k);
+			int t = order[k];
+			order[k] = order[m];
+			order[m] = t;
+		}
+
+		Arrays.fill(labels, 0);
+		for (int k = 0; k < testSamples; k++)
+		{
+			Matrix.set(labels, order[k]);
+		}
+	}
+
+	/**
+	 * @param set index of the gene set
+	 * @param labels bitset of the test samples
+	 * @return coverage of the set in the test samples, minus its coverage in the control samples
+	 */
+	public int getCoverageDifference(int set, long[] labels)
+	{
+		int inTest = 0;
+		for (int s : covered[set])
+		{
+			if (Matrix.isSet(labels, s)) inTest++;
+		}
+		return 2 * inTest - covered[set].length;
+	}
+
+	/**
+	 * @param set index of the gene set
+	 * @param member position of the gene in the set
+	 * @param labels bitset of the test samples
+	 * @return sample hits of the member in the test samples, minus its sample hits in the control samples
+	 */
+	public long getGeneHitDifference(int set, int member, long[] labels)
+	{
+		int[] list = memberSamples[set][member];
+		int[] hits = memberHits[set][member];
+		long sum = 0;
+		for (int k = 0; k < list.length; k++)
+		{
+			sum += Matrix.isSet(labels, list[k]) ? hits[k] : -hits[k];
+		}
+		return sum;
+	}
+}
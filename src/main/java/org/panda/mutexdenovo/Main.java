@@ -6,14 +6,25 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This class is the main execution point. It understands the command line arguments and calls necessary functions.
  */
 public class Main
 {
+	/**
+	 * Thread pool shared by the commands of a batch run. Null when not running a batch.
+	 */
+	private static ExecutorService sharedPool;
+
+	/**
+	 * Matrices loaded during a batch run, so that commands on the same matrix share it.
+	 */
+	private static Map<String, Matrix> matrixCache = new HashMap<>();
+
 	public static void main(String[] args) throws IOException
 	{
 		if (args.length < 1)
@@ -54,9 +65,47 @@ public class Main
 			"following tokens indicate specific parameters (should be customized).\n" +
 			"A parameter in <brackets> indicates an optional parameter. Below are explanation for some of these.\n\n" +
 			"matrix-indicator: Can be a filename that has the matrix, or can be a predefined filter for building" +
-			" the matrix from denovo-db.\n" +
-			"gene-sets-indicator: Can be a filename that has the gene sets, or can be either SFARI or Reactome.\n" +
-			"pattern-type: Can be either mutex or cooc, meaning mutual exclusivity or co-occurrence, respectively.");
+			" the matrix from denovo-db. The file can be gzip-compressed (.gz) or in the binary format (see " +
+			"convert-matrix), and - reads a text matrix from the standard input. It can also be a list of " +
+			"mutations with Sample and Gene columns, optionally followed by a list of all samples after a comma, as " +
+			"in mutations.txt,samples.txt.\n" +
+			"gene-sets-indicator: Can be a filename that has the gene sets, or can be either SFARI or Reactome. Several " +
+			"indicators can be given separated with commas, as in SFARI,Reactome, to test them on the same shuffled " +
+			"matrices. Then the results of each are written into a subdirectory of the output directory.\n" +
+			"pattern-type: Can be either mutex or cooc, meaning mutual exclusivity or co-occurrence, respectively.\n\n" +
+			"Options are given after the parameters, as in --name value.\n" +
+			"--threads: Number of threads that shuffle in parallel. Default is 1.\n" +
+			"--seed: Seed of the random number generator, to reproduce a run. A run is reproduced exactly with the same " +
+			"seed and the same number of threads. Default is a new seed, which is printed.\n" +
+			"--rng: The random number generator, either xoroshiro or splitmix. Default is xoroshiro.\n" +
+			"--adaptive: Number of exceedances, such as 10, after which a gene set stops being tested. Gene sets that " +
+			"are far from significance stop early, and results record the iterations of each set. Default is off.\n" +
+			"--null-cache: Directory to keep shuffled matrices. Shuffles of a matrix are recorded there at the first " +
+			"run, and replayed in the later runs on the same matrix with the same randomizer, swap rounds and " +
+			"threads.\n" +
+			"--checkpoint: File to save the state of the run periodically. If the file exists, the run resumes from " +
+			"it, and a finished run is extended if the random-iterations is increased.\n" +
+			"--checkpoint-interval: Number of iterations between two saves of the checkpoint. Default is " +
+			Checkpoint.DEFAULT_INTERVAL + ".\n" +
+			"--shard-index, --shard-count: Runs only a shard of the random-iterations, with a random stream of its own " +
+			"from --seed, which is required and should be the same for all shards. Shards write raw meet counts, to " +
+			"be merged with merge-shards.\n" +
+			"--screen: Screening threshold, such as 0.2. All gene sets are tested on 100 pilot iterations, and the " +
+			"gene sets whose approximate mutex and cooc p-values are both above the threshold are not tested further. " +
+			"Results record the iterations of each set. Default is off.\n" +
+			"--randomizer: The matrix randomizer, either swap or curveball. swap does edge swaps, and curveball trades " +
+			"many alterations between two genes at once, which mixes in fewer steps. Both keep the alteration counts " +
+			"of genes and samples. Default is swap.\n" +
+			"--swap-rounds: Number of rounds in a shuffle. A swap round attempts as many swaps as the alterations, and " +
+			"a curveball round does as many trades as the genes. Default is " + Shuffler.DEFAULT_ROUNDS + " for swap " +
+			"and " + CurveballShuffler.DEFAULT_ROUNDS + " for curveball. The value calibrate measures how fast the " +
+			"coverages of the gene sets decorrelate between rounds, and uses the smallest safe number for the matrix.\n" +
+			"--calibration-cache: Directory to keep the calibrated swap rounds, to reuse for the same matrix and gene " +
+			"sets.\n" +
+			"--member-output: How the p-values of the members of gene sets are written. files writes two files for " +
+			"each gene set, such as R-HSA-0000-mutex.txt and R-HSA-0000-cooc.txt. table writes one members.txt with " +
+			"set, gene, mutex p-value and cooc p-value columns, in the background while the results are written. " +
+			"table-gz writes it gzip-compressed as members.txt.gz. Default is files.");
 	}
 
 	interface Action
@@ -90,6 +139,23 @@ public class Main
 
 			matrix.write(outFile);
 		}, "  data-filter-name   output-filename", 2),
+		CONVERT_MATRIX("Convert an alteration matrix between the text and binary formats. The output is in the binary " +
+			"format if its name ends with " + BinaryMatrixFile.EXTENSION + ", and in the text format otherwise. The " +
+			"binary format loads much faster.",
+			args ->
+		{
+			Matrix matrix = loadMatrix(args[1]);
+			String outFile = args[2];
+
+			if (outFile.endsWith(BinaryMatrixFile.EXTENSION))
+			{
+				BinaryMatrixFile.write(matrix, outFile);
+			}
+			else
+			{
+				matrix.write(outFile);
+			}
+		}, "  matrix-indicator   output-filename", 2),
 		CALCULATE("Compute mutual exclusivity and co-occurrence.",
 			args ->
 		{
@@ -106,19 +172,18 @@ public class Main
 			GeneSetLoader loader = new GeneSetLoader(matrix);
 
 			// Load gene sets
-			Map<String, Set<String>> geneSets = groupsFile.equals(GeneSetLoader.SFARI_SETS) ? loader.loadSFARI() :
-				groupsFile.equals(GeneSetLoader.REACTOME_SETS) ? loader.loadReactome() : loader.loadFile(groupsFile);
+			String[] indicators = groupsFile.split(",");
+			List<Map<String, Set<String>>> collections = loadGeneSets(loader, indicators);
+			List<String> outDirs = getOutDirs(outDir, indicators);
 
 			// Test exclusivity
-			MutexTester tester = new MutexTester(matrix, geneSets, outDir, iterations);
+			MutexTester tester = new MutexTester(matrix, collections, outDirs, iterations);
+			configure(tester, readOptions(args, 5));
 			tester.run();
 
-			if (groupsFile.equals(GeneSetLoader.REACTOME_SETS))
-			{
-				ReactomeNameAdder.add(outDir + "/results.txt", outDir + "/results-with-names.txt");
-			}
+			if (!tester.isShard()) addReactomeNames(indicators, outDirs);
 
-		}, "  matrix-indicator   gene-sets-indicator   output-directory   random-iterations", 4),
+		}, "  matrix-indicator   gene-sets-indicator   output-directory   random-iterations   <options>", 4),
 		CALCULATE_DIFFERENTIAL("Compute differential mutual exclusivity and co-occurrence.",
 			args ->
 		{
@@ -137,19 +202,43 @@ public class Main
 			GeneSetLoader loader = new GeneSetLoader(matrixTest, matrixCtrl);
 
 			// Load gene sets
-			Map<String, Set<String>> geneSets = groupsFile.equals(GeneSetLoader.SFARI_SETS) ? loader.loadSFARI() :
-				groupsFile.equals(GeneSetLoader.REACTOME_SETS) ? loader.loadReactome() : loader.loadFile(groupsFile);
+			String[] indicators = groupsFile.split(",");
+			List<Map<String, Set<String>>> collections = loadGeneSets(loader, indicators);
+			List<String> outDirs = getOutDirs(outDir, indicators);
 
 			// Test exclusivity
-			DifferentialMutexTester tester = new DifferentialMutexTester(matrixTest, matrixCtrl, geneSets, outDir, iterations);
+			DifferentialMutexTester tester = new DifferentialMutexTester(matrixTest, matrixCtrl, collections, outDirs,
+				iterations);
+			configure(tester, readOptions(args, 6));
 			tester.run();
 
-			if (groupsFile.equals(GeneSetLoader.REACTOME_SETS))
+			if (!tester.isShard()) addReactomeNames(indicators, outDirs);
+
+		}, "  matrix-indicator-test   matrix-indicator-control   gene-sets-indicator   output-directory   random-iterations   <options>", 5),
+		MERGE_SHARDS("Merge the meet counts of the shards of a run, which are run with the --shard-index and " +
+			"--shard-count options, and write the results as an unsharded run. Shard directories are separated with " +
+			"commas. If the gene-sets-indicator of the shards is given, Reactome names are added as in calculate. The " +
+			"--member-output option applies as in calculate.",
+			args ->
+		{
+			String outDir = args[1];
+			List<String> shardDirs = Arrays.asList(args[2].split(","));
+			boolean hasIndicator = args.length > 3 && !args[3].startsWith("--");
+
+			Map<String, String> options = readOptions(args, hasIndicator ? 4 : 3);
+			options.keySet().stream().filter(name -> !name.equals("member-output")).findFirst().ifPresent(name ->
 			{
-				ReactomeNameAdder.add(outDir + "/results.txt", outDir + "/results-with-names.txt");
-			}
+				throw new RuntimeException("Unknown option for merge-shards: --" + name);
+			});
+
+			ShardMerger.merge(outDir, shardDirs, options.getOrDefault("member-output", MutexTester.MEMBER_FILES));
 
-		}, "  matrix-indicator-test   matrix-indicator-control   gene-sets-indicator   output-directory   random-iterations", 5),
+			if (hasIndicator)
+			{
+				String[] indicators = args[3].split(",");
+				addReactomeNames(indicators, getOutDirs(outDir, indicators));
+			}
+		}, "  output-directory   shard-output-directories   <gene-sets-indicator>   <options>", 2),
 		ANNOTATE_SET_MEMBERS("Generate a table for members of a gene set in the results.",
 			args ->
 		{
@@ -220,12 +309,65 @@ public class Main
 			}
 
 			// Find significant members and write results
-			MemberGeneContributionAnalyzer.findAndDocument(dir, outFile, pType == PatternType.MUTEX ? "-mutex.txt" : "-cooc.txt", fdrThr);
+			MemberGeneContributionAnalyzer.findAndDocument(dir, outFile, pType, fdrThr);
 
 			if (dir.contains("Reactome")) ReactomeNameAdder.add(outFile,
 				outFile.substring(0, outFile.lastIndexOf(".")) + "-names-added.txt");
 
 		}, "  results-directory-as-input   output-filename   pattern-type   fdr-threshold", 4),
+		SNAPSHOT_RESOURCES("Write a snapshot of the Reactome and SFARI resources, which is used instead of parsing " +
+			"the resources in later runs. Reactome pathways are cropped to the genes of the given matrices, separated " +
+			"with commas, and the snapshot is used for the runs on those matrices or on subsets of their genes. " +
+			"Generate the snapshot again after the resources are updated.",
+			args ->
+		{
+			Set<String> genes = new HashSet<>();
+			for (String indicator : args[1].split(","))
+			{
+				genes.addAll(loadMatrix(indicator).getGenes());
+			}
+
+			ResourceSnapshot.generate(genes);
+			System.out.println("Resource snapshot of " + genes.size() + " genes is written to " +
+				ResourceSnapshot.FILE);
+		}, "  matrix-indicators", 1),
+		RUN_BATCH("Run the commands in a manifest file in one process. Each line of the manifest is a command as it " +
+			"would be given to this program, where an argument with spaces can be quoted. Empty lines and lines " +
+			"starting with # are skipped. Commands run in the given order, matrices are loaded once, and shuffling of " +
+			"all commands is done by one pool of threads. Each command has one worker unless it sets --threads.",
+			args ->
+		{
+			List<String[]> jobs = readManifest(args[1]);
+
+			Map<String, String> options = readOptions(args, 2);
+			for (String name : options.keySet())
+			{
+				if (!name.equals("threads")) throw new RuntimeException("Unknown option for run-batch: --" + name);
+			}
+
+			sharedPool = Executors.newFixedThreadPool(Integer.valueOf(options.getOrDefault("threads", "1")));
+
+			try
+			{
+				for (int i = 0; i < jobs.size(); i++)
+				{
+					String[] job = jobs.get(i);
+					System.out.println("\nBatch job " + (i + 1) + "/" + jobs.size() + ": " + String.join(" ", job));
+					long start = System.currentTimeMillis();
+
+					ActionEnum.get(job[0]).run(job);
+
+					System.out.println("Batch job " + (i + 1) + " finished in " +
+						(System.currentTimeMillis() - start) / 1000D + " seconds.");
+				}
+			}
+			finally
+			{
+				sharedPool.shutdown();
+				sharedPool = null;
+				matrixCache.clear();
+			}
+		}, "  manifest-filename   <--threads N>", 1),
 		;
 
 		Action action;
@@ -255,16 +397,106 @@ public class Main
 		public static ActionEnum get(String name)
 		{
 			name = name.toUpperCase().replaceAll("-", "_");
-			return valueOf(name);
+			try
+			{
+				return valueOf(name);
+			}
+			catch (IllegalArgumentException e)
+			{
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Loads the gene set collection of each indicator.
+	 * @param loader gene set loader
+	 * @param indicators SFARI, Reactome, or a gene sets file
+	 * @return gene set collections
+	 * @throws IOException if a gene sets file cannot be read
+	 */
+	private static List<Map<String, Set<String>>> loadGeneSets(GeneSetLoader loader, String[] indicators)
+		throws IOException
+	{
+		List<Map<String, Set<String>>> collections = new ArrayList<>();
+		for (String indicator : indicators)
+		{
+			collections.add(indicator.equals(GeneSetLoader.SFARI_SETS) ? loader.loadSFARI() :
+				indicator.equals(GeneSetLoader.REACTOME_SETS) ? loader.loadReactome() : loader.loadFile(indicator));
+		}
+		return collections;
+	}
+
+	/**
+	 * Decides the output directory of each gene sets indicator. A single indicator uses the output directory itself.
+	 * Several indicators use subdirectories, named after the indicator, or after the file name without extension.
+	 * @param outDir the output directory
+	 * @param indicators gene sets indicators
+	 * @return output directories
+	 */
+	private static List<String> getOutDirs(String outDir, String[] indicators)
+	{
+		if (indicators.length == 1) return Collections.singletonList(outDir);
+
+		List<String> dirs = new ArrayList<>();
+		for (String indicator : indicators)
+		{
+			String name = Paths.get(indicator).getFileName().toString();
+			if (name.contains(".")) name = name.substring(0, name.lastIndexOf("."));
+
+			String dir = outDir + "/" + name;
+			if (dirs.contains(dir))
+			{
+				throw new RuntimeException("Gene sets indicators should have distinct names: " + name);
+			}
+			dirs.add(dir);
+		}
+		return dirs;
+	}
+
+	/**
+	 * Adds the names of Reactome pathways to the results of the Reactome collection, if there is one.
+	 */
+	private static void addReactomeNames(String[] indicators, List<String> outDirs) throws IOException
+	{
+		for (int i = 0; i < indicators.length; i++)
+		{
+			if (indicators[i].equals(GeneSetLoader.REACTOME_SETS))
+			{
+				ReactomeNameAdder.add(outDirs.get(i) + "/results.txt", outDirs.get(i) + "/results-with-names.txt");
+			}
 		}
 	}
 
 	private static Matrix loadMatrix(String matrixFileOrDenovoDBFilterName) throws IOException
+	{
+		// Matrices are not modified by the commands, hence can be shared in a batch run
+		if (sharedPool != null)
+		{
+			Matrix matrix = matrixCache.get(matrixFileOrDenovoDBFilterName);
+			if (matrix == null)
+			{
+				matrix = readMatrix(matrixFileOrDenovoDBFilterName);
+				matrixCache.put(matrixFileOrDenovoDBFilterName, matrix);
+			}
+			return matrix;
+		}
+		return readMatrix(matrixFileOrDenovoDBFilterName);
+	}
+
+	private static Matrix readMatrix(String matrixFileOrDenovoDBFilterName) throws IOException
 	{
 		// Read matrix
 		Matrix matrix = null;
-		if (Files.exists(Paths.get(matrixFileOrDenovoDBFilterName)) &&
-			!Files.isDirectory(Paths.get(matrixFileOrDenovoDBFilterName)))
+		String[] lists = matrixFileOrDenovoDBFilterName.split(",");
+		if (lists.length == 2 && !Files.exists(Paths.get(matrixFileOrDenovoDBFilterName)))
+		{
+			// A mutation list with its sample list
+			matrix = new Matrix(lists[0], lists[1]);
+		}
+		else if (matrixFileOrDenovoDBFilterName.equals(MatrixParser.STDIN) ||
+			(Files.exists(Paths.get(matrixFileOrDenovoDBFilterName)) &&
+			!Files.isDirectory(Paths.get(matrixFileOrDenovoDBFilterName))))
 		{
 			matrix = new Matrix(matrixFileOrDenovoDBFilterName);
 		}
@@ -285,4 +517,176 @@ public class Main
 		}
 		return matrix;
 	}
+
+	/**
+	 * Reads the options that are given after the parameters of a command, as in --name value.
+	 * @param args command line arguments
+	 * @param from index of the first option token
+	 * @return option name to value map
+	 */
+	private static Map<String, String> readOptions(String[] args, int from)
+	{
+		Map<String, String> options = new HashMap<>();
+		for (int i = from; i < args.length; i++)
+		{
+			if (!args[i].startsWith("--") || i + 1 == args.length)
+			{
+				throw new RuntimeException("Options should be given as --name value. Cannot read: " + args[i]);
+			}
+			options.put(args[i].substring(2), args[++i]);
+		}
+		return options;
+	}
+
+	/**
+	 * Reads and validates the commands in a batch manifest, before any of them is run.
+	 * @param filename manifest file
+	 * @return command line arguments of each command
+	 * @throws IOException if the manifest cannot be read
+	 */
+	private static List<String[]> readManifest(String filename) throws IOException
+	{
+		List<String[]> jobs = new ArrayList<>();
+		List<String> lines = Files.readAllLines(Paths.get(filename));
+
+		for (int i = 0; i < lines.size(); i++)
+		{
+			String line = lines.get(i).trim();
+			if (line.isEmpty() || line.startsWith("#")) continue;
+
+			String[] job = splitCommand(line, i + 1);
+			ActionEnum action = ActionEnum.get(job[0]);
+
+			if (action == null || action == ActionEnum.RUN_BATCH)
+			{
+				throw new RuntimeException("Line " + (i + 1) + " of the manifest has an invalid command: " + job[0]);
+			}
+			if (action.minArguments > job.length - 1)
+			{
+				throw new RuntimeException("Line " + (i + 1) + " of the manifest needs at least " +
+					action.minArguments + " arguments for the command \"" + job[0] + "\".");
+			}
+			jobs.add(job);
+		}
+		return jobs;
+	}
+
+	/**
+	 * Splits a command of the manifest into its arguments at whitespace, as a shell would. Text in single or double
+	 * quotes is kept in one argument, such as a path with spaces, and the quotes are removed.
+	 * @param line the command
+	 * @param lineNumber line number of the command in the manifest, to report errors
+	 * @return the arguments
+	 */
+	private static String[] splitCommand(String line, int lineNumber)
+	{
+		List<String> args = new ArrayList<>();
+		StringBuilder arg = null;
+		char quote = 0;
+
+		for (char c : line.toCharArray())
+		{
+			if (quote != 0)
+			{
+				if (c == quote) quote = 0;
+				else arg.append(c);
+			}
+			else if (Character.isWhitespace(c))
+			{
+				if (arg != null) args.add(arg.toString());
+				arg = null;
+			}
+			else
+			{
+				if (arg == null) arg = new StringBuilder();
+				if (c == '"' || c == '\'') quote = c;
+				else arg.append(c);
+			}
+		}
+
+		if (quote != 0) throw new RuntimeException("Line " + lineNumber + " of the manifest has an unclosed quote.");
+		if (arg != null) args.add(arg.toString());
+		return args.toArray(new String[0]);
+	}
+
+	/**
+	 * Applies the options to the tester. In a batch run, the workers of the tester run on the shared thread pool. The
+	 * number of workers is still one unless the command sets --threads, as when the command is run alone, since the
+	 * results of a seed depend on the number of workers.
+	 * @param tester the tester to configure
+	 * @param options option name to value map
+	 */
+	private static void configure(MutexTester tester, Map<String, String> options)
+	{
+		if (sharedPool != null) tester.setPool(sharedPool);
+
+		options.forEach((name, value) ->
+		{
+			switch (name)
+			{
+				case "threads":
+					tester.setThreads(Integer.valueOf(value));
+					break;
+				case "seed":
+					tester.setSeed(Long.valueOf(value));
+					break;
+				case "rng":
+					tester.setRandomType(value);
+					break;
+				case "adaptive":
+					tester.setAdaptive(Integer.valueOf(value));
+					break;
+				case "null-cache":
+					tester.setNullModelCache(value);
+					break;
+				case "checkpoint":
+					tester.setCheckpoint(value, Integer.valueOf(options.getOrDefault("checkpoint-interval",
+						String.valueOf(Checkpoint.DEFAULT_INTERVAL))));
+					break;
+				case "screen":
+					tester.setScreen(Double.valueOf(value));
+					break;
+				case "randomizer":
+					tester.setRandomizer(value);
+					break;
+				case "swap-rounds":
+					tester.setSwapRounds(value);
+					break;
+				case "calibration-cache":
+					tester.setCalibrationCache(value);
+					break;
+				case "member-output":
+					tester.setMemberOutput(value);
+					break;
+				case "differential-null":
+					if (!(tester instanceof DifferentialMutexTester))
+					{
+						throw new RuntimeException("--differential-null applies only to calculate-differential.");
+					}
+					((DifferentialMutexTester) tester).setNullModel(value);
+					break;
+				case "shard-index":
+					if (!options.containsKey("shard-count"))
+					{
+						throw new RuntimeException("--shard-index needs --shard-count.");
+					}
+					tester.setShard(Integer.valueOf(value), Integer.valueOf(options.get("shard-count")));
+					break;
+				case "shard-count":
+					if (!options.containsKey("shard-index"))
+					{
+						throw new RuntimeException("--shard-count needs --shard-index.");
+					}
+					break;
+				case "checkpoint-interval":
+					if (!options.containsKey("checkpoint"))
+					{
+						throw new RuntimeException("--checkpoint-interval needs --checkpoint.");
+					}
+					break;
+				default:
+					throw new RuntimeException("Unknown option: --" + name);
+			}
+		});
+	}
 }
@@ -1,13 +1,16 @@
 package org.panda.mutexdenovo;
 
 import org.panda.resource.autismdatasets.DenovoDB;
-import org.panda.utility.ArrayUtil;
 import org.panda.utility.FileUtil;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -18,46 +21,83 @@ import java.util.stream.Collectors;
 public class Matrix
 {
 	/**
-	 * The delimiter used in the text file representation of the alteration matrix.
+	 * Name of the samples in the matrix.
 	 */
-	private static final String DELIM = "\t";
+	private String[] colNames;
 
 	/**
-	 * Name of the samples in the matrix.
+	 * Name of the genes in the matrix. The position of a gene in this array is its integer ID.
 	 */
-	private String[] colNames;
+	private String[] geneNames;
+
+	/**
+	 * Gene name to integer ID map.
+	 */
+	private Map<String, Integer> geneIndex;
 
 	/**
-	 * Rows of the matrix, unordered.
+	 * Rows of the matrix as packed bitsets, indexed by gene ID. Bit i of a row is set if the gene is altered in sample i.
 	 */
-	private Map<String, boolean[]> rowMap;
+	private long[][] rows;
 
 	/**
 	 * Bipartite graph representation of the matrix.
 	 */
-	private List<Edge> edges;
+	private Edges edges;
+
+	/**
+	 * Whether the matrix is read from a mutation list without a sample list, which leaves out the samples without any
+	 * alteration.
+	 */
+	private boolean unalteredSamplesOmitted;
 
 	/**
-	 * Loads an alteration matrix from file.
+	 * Loads an alteration matrix from file. The file can be in the text format, in the binary format, or can be a list
+	 * of (sample, gene) records. Text files can be gzip-compressed. The file name "-" reads a text matrix from the
+	 * standard input.
 	 * @param filename file name
 	 * @throws IOException if file is not found
 	 */
 	public Matrix(String filename) throws IOException
 	{
-		// Read column names
-		String line = Files.lines(Paths.get(filename)).findFirst().get();
-		colNames = line.substring(line.indexOf(DELIM) + 1).split(DELIM);
+		if (BinaryMatrixFile.isBinary(filename))
+		{
+			BinaryMatrixFile file = BinaryMatrixFile.read(filename);
+			colNames = file.getColNames();
+			init(file.getGenes(), file.getRows());
+		}
+		else if (MutationListParser.isMutationList(filename))
+		{
+			MutationListParser parser = MutationListParser.parse(filename);
+			colNames = parser.getColNames();
+			init(parser.getGenes(), parser.getRows());
+			unalteredSamplesOmitted = true;
+		}
+		else
+		{
+			MatrixParser parser = MatrixParser.parse(filename);
+			colNames = parser.getColNames();
+			init(parser.getGenes(), parser.getRows());
+		}
+	}
 
-		// Read the rest
-		rowMap = new HashMap<>();
-		Files.lines(Paths.get(filename)).skip(1).forEach(l ->
+	/**
+	 * Loads an alteration matrix from a list of (sample, gene) records, with the list of all samples, including the
+	 * samples without any alteration.
+	 * @param mutationList file name of the mutation list
+	 * @param sampleList file name of the sample list
+	 * @throws IOException if a file cannot be read
+	 */
+	public Matrix(String mutationList, String sampleList) throws IOException
+	{
+		if (!MutationListParser.isMutationList(mutationList))
 		{
-			String gene = l.substring(0, l.indexOf(DELIM));
-			l = l.substring(l.indexOf(DELIM) + 1);
-			Boolean[] B = Arrays.stream(l.split(DELIM)).map(s -> s.isEmpty() || s.equals("0")).toArray(Boolean[]::new);
-			boolean[] b = ArrayUtil.convertToBasicBooleanArray(B);
-			rowMap.put(gene, b);
-		});
+			throw new RuntimeException("A sample list can only be given with a mutation list: " + mutationList);
+		}
+
+		MutationListParser parser = MutationListParser.parse(mutationList, sampleList);
+		colNames = parser.getColNames();
+		init(parser.getGenes(), parser.getRows());
 	}
 
 	/**
@@ -68,7 +108,27 @@ public class Matrix
 	public Matrix(String[] colNames, Map<String, boolean[]> rowMap)
 	{
 		this.colNames = colNames;
-		this.rowMap = rowMap;
+
+		String[] genes = rowMap.keySet().toArray(new String[rowMap.size()]);
+		long[][] packed = new long[genes.length][];
+		for (int g = 0; g < genes.length; g++)
+		{
+			packed[g] = pack(rowMap.get(genes[g]), colNames.length);
+		}
+
+		init(genes, packed);
+	}
+
+	/**
+	 * Constructor with packed values. The given arrays are used as they are, without copying.
+	 * @param colNames column names
+	 * @param geneNames gene names, in the order of rows
+	 * @param rows packed rows
+	 */
+	Matrix(String[] colNames, String[] geneNames, long[][] rows)
+	{
+		this.colNames = colNames;
+		init(geneNames, rows);
 	}
 
 	/**
@@ -86,16 +146,37 @@ public class Matrix
 			hitMap.get(e.gene).add(e.sampleID);
 		});
 
-		rowMap = new HashMap<>();
-		hitMap.forEach((gene, hits) ->
+		Map<String, Integer> colIndex = new HashMap<>();
+		for (int i = 0; i < colNames.length; i++)
 		{
-			boolean[] b = new boolean[colNames.length];
-			for (int i = 0; i < b.length; i++)
+			colIndex.put(colNames[i], i);
+		}
+
+		String[] genes = hitMap.keySet().toArray(new String[hitMap.size()]);
+		long[][] packed = new long[genes.length][wordCount(colNames.length)];
+		for (int g = 0; g < genes.length; g++)
+		{
+			for (String sample : hitMap.get(genes[g]))
 			{
-				b[i] = hits.contains(colNames[i]);
+				set(packed[g], colIndex.get(sample));
 			}
-			rowMap.put(gene, b);
-		});
+		}
+
+		init(genes, packed);
+	}
+
+	/**
+	 * Sets the rows and builds the gene name index.
+	 */
+	private void init(String[] geneNames, long[][] rows)
+	{
+		this.geneNames = geneNames;
+		this.rows = rows;
+		this.geneIndex = new HashMap<>();
+		for (int g = 0; g < geneNames.length; g++)
+		{
+			geneIndex.put(geneNames[g], g);
+		}
 	}
 
 	/**
@@ -105,18 +186,17 @@ public class Matrix
 	public Matrix copy()
 	{
 		// Copy column names
-		Matrix c = new Matrix(new String[colNames.length], new HashMap<>());
-		System.arraycopy(colNames, 0, c.colNames, 0, colNames.length);
+		String[] cols = new String[colNames.length];
+		System.arraycopy(colNames, 0, cols, 0, colNames.length);
 
 		// Copy values
-		rowMap.forEach((gene, vals) ->
+		long[][] packed = new long[rows.length][];
+		for (int g = 0; g < rows.length; g++)
 		{
-			boolean[] b = new boolean[vals.length];
-			System.arraycopy(vals, 0, b, 0, b.length);
-			c.rowMap.put(gene, b);
-		});
+			packed[g] = rows[g].clone();
+		}
 
-		return c;
+		return new Matrix(cols, geneNames.clone(), packed);
 	}
 
 	/**
@@ -130,35 +210,32 @@ public class Matrix
 
 		Arrays.stream(colNames).forEach(s -> FileUtil.tab_write(s, writer));
 
-		rowMap.forEach((gene, b) ->
+		for (int g = 0; g < geneNames.length; g++)
 		{
-			FileUtil.lnwrite(gene, writer);
-			for (boolean v : b) FileUtil.tab_write(v ? "1" : "0", writer);
-		});
+			FileUtil.lnwrite(geneNames[g], writer);
+			for (int i = 0; i < colNames.length; i++) FileUtil.tab_write(isSet(rows[g], i) ? "1" : "0", writer);
+		}
 
 		writer.close();
 	}
 
 	public boolean hasAllGenes(Collection<String> genes)
 	{
-		return rowMap.keySet().containsAll(genes);
+		return geneIndex.keySet().containsAll(genes);
 	}
 
 	public int countCoverage(Set<String> genes)
 	{
-		int n = rowMap.values().iterator().next().length;
+		long[][] sel = selectRows(genes);
 		int cov = 0;
-		for (int i = 0; i < n; i++)
+		for (int w = 0; w < wordCount(colNames.length); w++)
 		{
-			for (String gene : genes)
+			long union = 0;
+			for (long[] row : sel)
 			{
-				boolean[] b = rowMap.get(gene);
-				if (b != null && b[i])
-				{
-					cov++;
-					break;
-				}
+				union |= row[w];
 			}
+			cov += Long.bitCount(union);
 		}
 		return cov;
 	}
@@ -170,28 +247,34 @@ public class Matrix
 
 	public int getMutationCount(String gene)
 	{
-		return ArrayUtil.countValue(rowMap.get(gene), true);
+		return getMutationCount(geneIndex.get(gene));
 	}
 
-	public int countOverlap(Set<String> genes)
+	public int getMutationCount(int gene)
 	{
-		int n = rowMap.values().iterator().next().length;
-		int ov = 0;
+		int cnt = 0;
+		for (long word : rows[gene])
+		{
+			cnt += Long.bitCount(word);
+		}
+		return cnt;
+	}
 
-		for (int i = 0; i < n; i++)
+	/**
+	 * Counts the alterations in the samples that are already covered by another member of the gene set. This is the
+	 * total number of alterations of the set minus its coverage.
+	 */
+	public int countOverlap(Set<String> genes)
+	{
+		int total = 0;
+		for (long[] row : selectRows(genes))
 		{
-			boolean covered = false;
-			for (String gene : genes)
+			for (long word : row)
 			{
-				boolean[] b = rowMap.get(gene);
-				if (b != null && b[i])
-				{
-					if (!covered) covered = true;
-					else ov++;
-				}
+				total += Long.bitCount(word);
 			}
 		}
-		return ov;
+		return total - countCoverage(genes);
 	}
 
 	/**
@@ -222,13 +305,18 @@ public class Matrix
 
 	public int countOverlap(String gene1, String gene2)
 	{
-		boolean[] b1 = rowMap.get(gene1);
-		boolean[] b2 = rowMap.get(gene2);
+		return countOverlap(geneIndex.get(gene1), geneIndex.get(gene2));
+	}
+
+	public int countOverlap(int gene1, int gene2)
+	{
+		long[] b1 = rows[gene1];
+		long[] b2 = rows[gene2];
 
 		int cnt = 0;
-		for (int i = 0; i < b1.length; i++)
+		for (int w = 0; w < b1.length; w++)
 		{
-			if (b1[i] && b2[i]) cnt++;
+			cnt += Long.bitCount(b1[w] & b2[w]);
 		}
 		return cnt;
 	}
@@ -239,17 +327,17 @@ public class Matrix
 	 */
 	public Map<String, Set<Integer>> getGeneToIndices()
 	{
-		Map<String, Set<Integer>> map = rowMap.keySet().stream().collect(Collectors.toMap(
-			Function.identity(), gene -> new HashSet<>()));
+		Map<String, Set<Integer>> map = new HashMap<>();
 
-		map.forEach((gene, inds) ->
+		for (int g = 0; g < geneNames.length; g++)
 		{
-			boolean[] b = rowMap.get(gene);
-			for (int i = 0; i < b.length; i++)
+			Set<Integer> inds = new HashSet<>();
+			for (int i = nextSetBit(rows[g], 0); i >= 0; i = nextSetBit(rows[g], i + 1))
 			{
-				if (b[i]) inds.add(i);
+				inds.add(i);
 			}
-		});
+			map.put(geneNames[g], inds);
+		}
 
 		return map;
 	}
@@ -257,7 +345,7 @@ public class Matrix
 	/**
 	 * @return graph representation of the matrix
 	 */
-	public List<Edge> getEdges()
+	public Edges getEdges()
 	{
 		if (edges == null)
 		{
@@ -266,46 +354,269 @@ public class Matrix
 		return edges;
 	}
 
+	/**
+	 * Unpacks the rows of the matrix. The returned arrays are copies, hence modifying them does not alter the matrix.
+	 * @return gene to row map
+	 */
 	public Map<String, boolean[]> getRows()
 	{
-		return rowMap;
+		Map<String, boolean[]> map = new HashMap<>();
+		for (int g = 0; g < geneNames.length; g++)
+		{
+			boolean[] b = new boolean[colNames.length];
+			for (int i = 0; i < b.length; i++)
+			{
+				b[i] = isSet(rows[g], i);
+			}
+			map.put(geneNames[g], b);
+		}
+		return map;
 	}
 
 	public Set<String> getGenes()
 	{
-		return rowMap.keySet();
+		return geneIndex.keySet();
+	}
+
+	/**
+	 * @return number of genes (rows)
+	 */
+	public int getGeneCount()
+	{
+		return geneNames.length;
+	}
+
+	/**
+	 * @return number of samples (columns)
+	 */
+	public int getSampleCount()
+	{
+		return colNames.length;
+	}
+
+	/**
+	 * @param gene gene name
+	 * @return integer ID of the gene, or -1 if the gene is not in the matrix
+	 */
+	public int getGeneIndex(String gene)
+	{
+		Integer g = geneIndex.get(gene);
+		return g == null ? -1 : g;
+	}
+
+	public String getGeneName(int gene)
+	{
+		return geneNames[gene];
+	}
+
+	public String[] getColNames()
+	{
+		return colNames;
+	}
+
+	/**
+	 * @return true if the matrix is read from a mutation list without a sample list, hence the samples without any
+	 * alteration are not in the matrix
+	 */
+	public boolean isUnalteredSamplesOmitted()
+	{
+		return unalteredSamplesOmitted;
+	}
+
+	/**
+	 * Gets the packed row of the gene. The returned array is the live row, hence modifying it alters the matrix.
+	 * @param gene gene ID
+	 * @return the packed row
+	 */
+	public long[] getRow(int gene)
+	{
+		return rows[gene];
+	}
+
+	public boolean get(int gene, int sample)
+	{
+		return isSet(rows[gene], sample);
+	}
+
+	/**
+	 * Calculates a SHA-256 hash of the matrix content, which covers the gene names in their order, the sample count
+	 * and the values. Two matrices with the same hash have the same edges in the same order.
+	 * @return hash as a hexadecimal string
+	 */
+	public String getContentHash()
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new RuntimeException(e);
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(8 * (wordCount(colNames.length) + 1));
+		buf.putInt(colNames.length).putInt(geneNames.length);
+		digest.update(buf.array(), 0, buf.position());
+
+		for (int g = 0; g < geneNames.length; g++)
+		{
+			digest.update(geneNames[g].getBytes(StandardCharsets.UTF_8));
+			buf.clear();
+			buf.putInt(-1);
+			for (long word : rows[g])
+			{
+				buf.putLong(word);
+			}
+			digest.update(buf.array(), 0, buf.position());
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest())
+		{
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
 	}
 
 	/**
 	 * Generates the graph representation of the matrix.
 	 * @return matrix as a graph
 	 */
-	public List<Edge> generateEdges()
+	public Edges generateEdges()
 	{
-		List<Edge> edges = new ArrayList<>();
-		for (String gene : rowMap.keySet())
+		int[] geneStart = new int[geneNames.length + 1];
+		for (int g = 0; g < geneNames.length; g++)
 		{
-			boolean[] b = rowMap.get(gene);
-			for (int i = 0; i < b.length; i++)
+			geneStart[g + 1] = geneStart[g] + getMutationCount(g);
+		}
+
+		Edges edges = new Edges(geneStart);
+		for (int g = 0; g < geneNames.length; g++)
+		{
+			int e = geneStart[g];
+			for (int i = nextSetBit(rows[g], 0); i >= 0; i = nextSetBit(rows[g], i + 1))
 			{
-				if (b[i]) edges.add(new Edge(gene, i));
+				edges.geneIdx[e] = g;
+				edges.sampleIdx[e++] = i;
 			}
 		}
 		return edges;
 	}
 
 	/**
-	 * Class to use for bipartite graph representation of the alteration matrix.
+	 * Replaces the sample indices of the edges, and updates the rows accordingly. The new indices should keep the
+	 * alteration count of each gene, as after shuffling.
+	 * @param sampleIdx sample index of each edge, in the order of the edges
+	 */
+	void setSampleIndices(int[] sampleIdx)
+	{
+		Edges edges = getEdges();
+		System.arraycopy(sampleIdx, 0, edges.sampleIdx, 0, edges.size());
+
+		for (long[] row : rows)
+		{
+			Arrays.fill(row, 0);
+		}
+		for (int e = 0; e < edges.size(); e++)
+		{
+			set(rows[edges.geneIdx[e]], edges.sampleIdx[e]);
+		}
+	}
+
+	/**
+	 * Gets the rows of the given genes that exist in the matrix.
 	 */
-	static class Edge
+	private long[][] selectRows(Set<String> genes)
 	{
-		String gene;
-		int sampleIndex;
+		return genes.stream().map(geneIndex::get).filter(Objects::nonNull).map(g -> rows[g]).toArray(long[][]::new);
+	}
+
+	/**
+	 * @param size number of bits
+	 * @return number of longs needed to hold the given number of bits
+	 */
+	static int wordCount(int size)
+	{
+		return (size + 63) >>> 6;
+	}
+
+	static boolean isSet(long[] row, int i)
+	{
+		return (row[i >>> 6] & (1L << i)) != 0;
+	}
+
+	static void set(long[] row, int i)
+	{
+		row[i >>> 6] |= 1L << i;
+	}
+
+	static void flip(long[] row, int i)
+	{
+		row[i >>> 6] ^= 1L << i;
+	}
+
+	/**
+	 * @return index of the first set bit at or after the given index, or -1 if there is none
+	 */
+	static int nextSetBit(long[] row, int from)
+	{
+		int w = from >>> 6;
+		if (w >= row.length) return -1;
+
+		long word = row[w] & (-1L << from);
+		while (true)
+		{
+			if (word != 0) return (w << 6) + Long.numberOfTrailingZeros(word);
+			if (++w == row.length) return -1;
+			word = row[w];
+		}
+	}
+
+	static long[] pack(boolean[] b, int size)
+	{
+		long[] row = new long[wordCount(size)];
+		for (int i = 0; i < b.length; i++)
+		{
+			if (b[i]) set(row, i);
+		}
+		return row;
+	}
+
+	/**
+	 * Bipartite graph representation of the alteration matrix, as parallel arrays of gene IDs and sample indices. Edges
+	 * are grouped by gene. Shuffling only changes the samples of the edges, hence the edges of a gene always stay in
+	 * the same range of positions.
+	 */
+	static class Edges
+	{
+		/**
+		 * Gene ID of each edge.
+		 */
+		final int[] geneIdx;
+
+		/**
+		 * Sample index of each edge.
+		 */
+		final int[] sampleIdx;
+
+		/**
+		 * Position of the first edge of each gene. Edges of gene g are in positions from geneStart[g] (inclusive) to
+		 * geneStart[g + 1] (exclusive).
+		 */
+		final int[] geneStart;
+
+		Edges(int[] geneStart)
+		{
+			this.geneStart = geneStart;
+			int size = geneStart[geneStart.length - 1];
+			geneIdx = new int[size];
+			sampleIdx = new int[size];
+		}
 
-		public Edge(String gene, int sampleIndex)
+		int size()
 		{
-			this.gene = gene;
-			this.sampleIndex = sampleIndex;
+			return geneIdx.length;
 		}
 	}
 }
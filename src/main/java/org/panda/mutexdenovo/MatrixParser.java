@@ -0,0 +1,259 @@
+package org.panda.mutexdenovo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streaming parser for the tab-delimited text representation of the alteration matrix. The first line has the sample
+ * names after a corner cell, and each following line has a gene name followed by its values. A value is an alteration
+ * unless it is empty or "0". Bytes are read once and values go directly into the packed rows, without generating
+ * strings for the values.
+ * <p>
+ * The input can be a plain file, a gzip-compressed file with the ".gz" extension, or the standard input given as "-".
+ * Large plain files are memory-mapped.
+ */
+public class MatrixParser
+{
+	/**
+	 * The name that indicates the standard input.
+	 */
+	public static final String STDIN = "-";
+
+	/**
+	 * Files larger than this are memory-mapped instead of read through a stream.
+	 */
+	private static final long MMAP_THRESHOLD = 1L << 26;
+
+	/**
+	 * Size of the memory-mapped windows of a large file.
+	 */
+	private static final int MMAP_WINDOW = 1 << 30;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static final byte TAB = '\t';
+	private static final byte LF = '\n';
+	private static final byte CR = '\r';
+
+	/**
+	 * Sample names, available after the first line is parsed.
+	 */
+	private String[] colNames;
+
+	private int wordCount;
+
+	private List<String> genes = new ArrayList<>();
+
+	private List<long[]> rows = new ArrayList<>();
+
+	/**
+	 * The current line number, for error messages.
+	 */
+	private int lineNum = 1;
+
+	/**
+	 * Bytes of the current name, which can span the windows of the input.
+	 */
+	private byte[] token = new byte[256];
+	private int tokenLength;
+
+	/**
+	 * Column of the current cell on the line. The corner or the gene name is column -1.
+	 */
+	private int column = -1;
+
+	private List<String> headerNames = new ArrayList<>();
+
+	/**
+	 * Row of the current line.
+	 */
+	private long[] row;
+
+	/**
+	 * Length of the current cell, and whether it is "0" so far.
+	 */
+	private int cellLength;
+	private boolean cellZero;
+
+	/**
+	 * Parses the matrix in the given file.
+	 * @param filename the file name, or "-" for the standard input
+	 * @return the parser with the parsed matrix
+	 * @throws IOException if the file cannot be read
+	 */
+	public static MatrixParser parse(String filename) throws IOException
+	{
+		MatrixParser parser = new MatrixParser();
+
+		if (filename.equals(STDIN))
+		{
+			parser.parse(System.in);
+		}
+		else if (filename.endsWith(".gz"))
+		{
+			try (InputStream in = new GZIPInputStream(Files.newInputStream(Paths.get(filename)), BUFFER_SIZE))
+			{
+				parser.parse(in);
+			}
+		}
+		else if (Files.size(Paths.get(filename)) > MMAP_THRESHOLD)
+		{
+			parser.parseMapped(Paths.get(filename));
+		}
+		else
+		{
+			try (InputStream in = Files.newInputStream(Paths.get(filename)))
+			{
+				parser.parse(in);
+			}
+		}
+
+		parser.finish();
+		return parser;
+	}
+
+	private void parse(InputStream in) throws IOException
+	{
+		byte[] buf = new byte[BUFFER_SIZE];
+		ByteBuffer wrapper = ByteBuffer.wrap(buf);
+		for (int n = in.read(buf); n >= 0; n = in.read(buf))
+		{
+			wrapper.clear().limit(n);
+			feed(wrapper);
+		}
+	}
+
+	private void parseMapped(Path file) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			for (long pos = 0; pos < size; pos += MMAP_WINDOW)
+			{
+				feed(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MMAP_WINDOW, size - pos)));
+			}
+		}
+	}
+
+	/**
+	 * Processes the given bytes. A line, a name or a value can continue in the next call.
+	 */
+	private void feed(ByteBuffer buf)
+	{
+		while (buf.hasRemaining())
+		{
+			byte b = buf.get();
+
+			if (b == LF && column < 0 && tokenLength == 0)
+			{
+				// Empty line
+				lineNum++;
+			}
+			else if (b == TAB || b == LF)
+			{
+				endCell();
+				if (b == LF) endLine();
+			}
+			else if (b != CR)
+			{
+				if (column < 0 || colNames == null)
+				{
+					if (tokenLength == token.length) token = Arrays.copyOf(token, token.length * 2);
+					token[tokenLength++] = b;
+				}
+				else
+				{
+					cellZero = cellLength == 0 && b == '0';
+					cellLength++;
+				}
+			}
+		}
+	}
+
+	private void endCell()
+	{
+		if (colNames == null)
+		{
+			// The corner cell of the header is not a sample name
+			if (column >= 0) headerNames.add(new String(token, 0, tokenLength, StandardCharsets.UTF_8));
+		}
+		else if (column < 0)
+		{
+			row = new long[wordCount];
+			genes.add(new String(token, 0, tokenLength, StandardCharsets.UTF_8));
+		}
+		else if (cellLength > 0 && !cellZero)
+		{
+			if (column >= colNames.length)
+			{
+				throw new RuntimeException("Line " + lineNum + " of the matrix has more values than the samples.");
+			}
+			Matrix.set(row, column);
+		}
+
+		column++;
+		tokenLength = 0;
+		cellLength = 0;
+	}
+
+	private void endLine()
+	{
+		if (colNames == null)
+		{
+			// Trailing empty names are dropped, as in String.split
+			int n = headerNames.size();
+			while (n > 0 && headerNames.get(n - 1).isEmpty()) n--;
+
+			colNames = headerNames.subList(0, n).toArray(new String[n]);
+			wordCount = Matrix.wordCount(colNames.length);
+		}
+		else if (row != null)
+		{
+			rows.add(row);
+		}
+
+		row = null;
+		column = -1;
+		lineNum++;
+	}
+
+	/**
+	 * Completes the last line if the input does not end with a line break.
+	 */
+	private void finish()
+	{
+		if (column >= 0 || tokenLength > 0)
+		{
+			endCell();
+			endLine();
+		}
+
+		if (colNames == null) throw new RuntimeException("The matrix file is empty.");
+	}
+
+	public String[] getColNames()
+	{
+		return colNames;
+	}
+
+	public String[] getGenes()
+	{
+		return genes.toArray(new String[genes.size()]);
+	}
+
+	public long[][] getRows()
+	{
+		return rows.toArray(new long[rows.size()][]);
+	}
+}
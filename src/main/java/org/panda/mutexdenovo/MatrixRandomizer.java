@@ -0,0 +1,87 @@
+package org.panda.mutexdenovo;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Generates degree-preserving randomizations of an alteration matrix, one at each call to shuffle. The matrix and its
+ * edges are modified in place.
+ */
+public interface MatrixRandomizer extends Closeable
+{
+	String SWAP = "swap";
+	String CURVEBALL = "curveball";
+
+	/**
+	 * Randomizes the matrix.
+	 */
+	void shuffle() throws IOException;
+
+	/**
+	 * Sets the tracker to notify of the alterations that move between samples. The tracker should be generated on the
+	 * same matrix.
+	 * @param tracker coverage tracker
+	 */
+	void setTracker(CoverageTracker tracker);
+
+	/**
+	 * @return number of swaps attempted so far, or 0 if the randomizer does not swap
+	 */
+	default long getSwapAttempts()
+	{
+		return 0;
+	}
+
+	/**
+	 * @return number of swaps accepted so far, or 0 if the randomizer does not swap
+	 */
+	default long getSwapsAccepted()
+	{
+		return 0;
+	}
+
+	/**
+	 * Generates a randomizer of the given type.
+	 * @param type either swap or curveball
+	 * @param matrix the matrix to randomize
+	 * @param random random number generator, to be used only by the randomizer
+	 * @param rounds number of rounds in a shuffle, whose size depends on the type
+	 * @return the randomizer
+	 */
+	static MatrixRandomizer create(String type, Matrix matrix, RandomSource random, int rounds)
+	{
+		switch (type)
+		{
+			case SWAP: return new Shuffler(matrix, random, rounds);
+			case CURVEBALL: return new CurveballShuffler(matrix, random, rounds);
+			default: throw new RuntimeException("Unknown randomizer: " + type + ". Possible values: " + SWAP + ", " +
+				CURVEBALL);
+		}
+	}
+
+	/**
+	 * @param type either swap or curveball
+	 * @return default number of rounds in a shuffle of the randomizer type
+	 */
+	static int getDefaultRounds(String type)
+	{
+		return type.equals(CURVEBALL) ? CurveballShuffler.DEFAULT_ROUNDS : Shuffler.DEFAULT_ROUNDS;
+	}
+
+	/**
+	 * Releases the resources of the randomizer, if there are any.
+	 */
+	@Override
+	default void close() throws IOException
+	{
+	}
+
+	/**
+	 * Releases the resources of the randomizer after a failed run. Randomizers that write files discard them instead of
+	 * completing them.
+	 */
+	default void abort() throws IOException
+	{
+		close();
+	}
+}
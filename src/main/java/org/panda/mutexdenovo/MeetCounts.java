@@ -0,0 +1,164 @@
+package org.panda.mutexdenovo;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Counts how many times the statistics of the randomized matrices met the observed statistics, for each gene set and
+ * for each member gene of the sets. Gene sets and their members are addressed by their positions, which are decided
+ * by the tester. Each worker thread records into its own counts, and the counts are summed at the end.
+ */
+public class MeetCounts
+{
+	/**
+	 * Number of randomizations that each gene set is tested on.
+	 */
+	int[] iterations;
+
+	/**
+	 * Mutual exclusivity meet count of each gene set.
+	 */
+	int[] mutex;
+
+	/**
+	 * Co-occurrence meet count of each gene set.
+	 */
+	int[] cooc;
+
+	/**
+	 * Mutual exclusivity meet counts of the members of each gene set.
+	 */
+	int[][] geneMutex;
+
+	/**
+	 * Co-occurrence meet counts of the members of each gene set.
+	 */
+	int[][] geneCooc;
+
+	/**
+	 * Sum and the sum of squares of the randomized coverages of each gene set, to approximate their distribution.
+	 */
+	double[] coverageSum;
+	double[] coverageSumSq;
+
+	/**
+	 * Constructor with the gene set members.
+	 * @param members members of each gene set
+	 */
+	public MeetCounts(Object[][] members)
+	{
+		iterations = new int[members.length];
+		mutex = new int[members.length];
+		cooc = new int[members.length];
+		coverageSum = new double[members.length];
+		coverageSumSq = new double[members.length];
+		geneMutex = new int[members.length][];
+		geneCooc = new int[members.length][];
+
+		for (int i = 0; i < members.length; i++)
+		{
+			geneMutex[i] = new int[members[i].length];
+			geneCooc[i] = new int[members[i].length];
+		}
+	}
+
+	/**
+	 * Records the coverage of a gene set in a randomized matrix. A coverage that is not less than the observed one
+	 * meets mutual exclusivity, and a coverage that is not greater than the observed one meets co-occurrence. Each
+	 * call counts as an iteration for the gene set.
+	 * @param set index of the gene set
+	 * @param coverage coverage in the randomized matrix
+	 * @param observed coverage in the original matrix
+	 */
+	public void recordSet(int set, long coverage, long observed)
+	{
+		iterations[set]++;
+		coverageSum[set] += coverage;
+		coverageSumSq[set] += (double) coverage * coverage;
+		if (coverage >= observed) mutex[set]++;
+		if (coverage <= observed) cooc[set]++;
+	}
+
+	/**
+	 * Records the sample hits of a member gene in a randomized matrix. Hits are the sum of the alterations of the set
+	 * in the samples that the gene is altered, hence less hits indicate more exclusivity.
+	 * @param set index of the gene set
+	 * @param gene index of the gene in the gene set
+	 * @param hits hits in the randomized matrix
+	 * @param observed hits in the original matrix
+	 */
+	public void recordGene(int set, int gene, long hits, long observed)
+	{
+		if (hits <= observed) geneMutex[set][gene]++;
+		if (hits >= observed) geneCooc[set][gene]++;
+	}
+
+	/**
+	 * Writes the counts, to be read into counts of the same gene sets.
+	 * @param out the output
+	 * @throws IOException if cannot write
+	 */
+	public void write(DataOutput out) throws IOException
+	{
+		for (int i = 0; i < mutex.length; i++)
+		{
+			out.writeInt(iterations[i]);
+			out.writeInt(mutex[i]);
+			out.writeInt(cooc[i]);
+			out.writeDouble(coverageSum[i]);
+			out.writeDouble(coverageSumSq[i]);
+
+			for (int j = 0; j < geneMutex[i].length; j++)
+			{
+				out.writeInt(geneMutex[i][j]);
+				out.writeInt(geneCooc[i][j]);
+			}
+		}
+	}
+
+	/**
+	 * Reads the counts that are written for the same gene sets, replacing the current counts.
+	 * @param in the input
+	 * @throws IOException if cannot read
+	 */
+	public void read(DataInput in) throws IOException
+	{
+		for (int i = 0; i < mutex.length; i++)
+		{
+			iterations[i] = in.readInt();
+			mutex[i] = in.readInt();
+			cooc[i] = in.readInt();
+			coverageSum[i] = in.readDouble();
+			coverageSumSq[i] = in.readDouble();
+
+			for (int j = 0; j < geneMutex[i].length; j++)
+			{
+				geneMutex[i][j] = in.readInt();
+				geneCooc[i][j] = in.readInt();
+			}
+		}
+	}
+
+	/**
+	 * Adds the given counts to this one.
+	 * @param other counts recorded by another worker
+	 */
+	public void add(MeetCounts other)
+	{
+		for (int i = 0; i < mutex.length; i++)
+		{
+			iterations[i] += other.iterations[i];
+			mutex[i] += other.mutex[i];
+			cooc[i] += other.cooc[i];
+			coverageSum[i] += other.coverageSum[i];
+			coverageSumSq[i] += other.coverageSumSq[i];
+
+			for (int j = 0; j < geneMutex[i].length; j++)
+			{
+				geneMutex[i][j] += other.geneMutex[i][j];
+				geneCooc[i][j] += other.geneCooc[i][j];
+			}
+		}
+	}
+}
@@ -3,11 +3,12 @@ package org.panda.mutexdenovo;
 import org.panda.utility.FileUtil;
 import org.panda.utility.statistics.FDR;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -17,29 +18,56 @@ import java.util.stream.Collectors;
  */
 public class MemberGeneContributionAnalyzer
 {
-	public static void findAndDocument(String dir, String outFile, String inFileSuffix, double fdrThr) throws IOException
+	public static void findAndDocument(String dir, String outFile, PatternType pType, double fdrThr) throws IOException
 	{
-		// Load files as p-value maps
-		Map<Path, Map<String, Double>> pMap =  Files.list(Paths.get(dir))
-			.filter(p -> p.toString().endsWith(inFileSuffix))
-			.collect(Collectors.toMap(p -> p, p-> FileUtil.lines(p).map(l -> l.split("\t"))
-				.collect(Collectors.toMap(t -> t[0], t -> Double.valueOf(t[1])))));
+		// Load member p-values of each gene set, from the member table if the results have one
+		String table = MemberTableWriter.find(dir);
+		Map<String, Map<String, Double>> pMap = table == null ? readSetFiles(dir, pType) : readTable(table, pType);
 
 		// Find significant members for each gene set analysis results
-		Map<Path, List<String>> select = pMap.keySet().stream()
-			.collect(Collectors.toMap(p -> p, p -> FDR.select(pMap.get(p), null, fdrThr)));
+		Map<String, List<String>> select = pMap.keySet().stream()
+			.collect(Collectors.toMap(s -> s, s -> FDR.select(pMap.get(s), null, fdrThr)));
 
 		// Write output
 
 		BufferedWriter writer = Files.newBufferedWriter(Paths.get(outFile));
 
-		select.keySet().stream().filter(p -> !select.get(p).isEmpty()).forEach(p ->
-			FileUtil.writeln(removeSuffix(p.getName(p.getNameCount()-1).toString(), inFileSuffix) + "\t" +
-				select.get(p), writer));
+		select.keySet().stream().filter(s -> !select.get(s).isEmpty()).forEach(s ->
+			FileUtil.writeln(s + "\t" + select.get(s), writer));
 
 		writer.close();
 	}
 
+	private static Map<String, Map<String, Double>> readSetFiles(String dir, PatternType pType) throws IOException
+	{
+		String suffix = pType == PatternType.MUTEX ? "-mutex.txt" : "-cooc.txt";
+
+		return Files.list(Paths.get(dir))
+			.filter(p -> p.toString().endsWith(suffix))
+			.collect(Collectors.toMap(p -> removeSuffix(p.getName(p.getNameCount()-1).toString(), suffix),
+				p -> FileUtil.lines(p).map(l -> l.split("\t"))
+				.collect(Collectors.toMap(t -> t[0], t -> Double.valueOf(t[1])))));
+	}
+
+	private static Map<String, Map<String, Double>> readTable(String table, PatternType pType) throws IOException
+	{
+		int column = pType == PatternType.MUTEX ? 2 : 3;
+		Map<String, Map<String, Double>> pMap = new HashMap<>();
+
+		try (BufferedReader reader = MemberTableWriter.read(table))
+		{
+			// Skip the header
+			reader.readLine();
+
+			for (String line = reader.readLine(); line != null; line = reader.readLine())
+			{
+				String[] t = line.split("\t");
+				pMap.computeIfAbsent(t[0], k -> new HashMap<>()).put(t[1], Double.valueOf(t[column]));
+			}
+		}
+		return pMap;
+	}
+
 	private static String removeSuffix(String s, String suffix)
 	{
 		return s.substring(0, s.lastIndexOf(suffix));
@@ -0,0 +1,211 @@
+package org.panda.mutexdenovo;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the p-values of the members of all gene sets into one table per output directory, instead of two small files
+ * for each gene set. Each line of the table is a gene set, a member gene, and the mutex and cooc p-values of the gene.
+ * Lines are handed over in blocks, and written by a background thread while the caller continues. The table can be
+ * gzip-compressed.
+ */
+public class MemberTableWriter implements Closeable
+{
+	/**
+	 * Name of the member table in the output directory.
+	 */
+	public static final String FILE = "members.txt";
+
+	public static final String GZIP_EXTENSION = ".gz";
+
+	public static final String HEADER = "Set\tGene\tMutex p-value\tCooc p-value";
+
+	/**
+	 * Number of blocks that can wait for writing, before the caller blocks.
+	 */
+	private static final int QUEUE_SIZE = 1024;
+
+	/**
+	 * Marks the end of the blocks.
+	 */
+	private static final Block END = new Block(-1, null);
+
+	private Writer[] writers;
+
+	private BlockingQueue<Block> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+	private Thread thread;
+
+	/**
+	 * The first error of the background thread, thrown when closing.
+	 */
+	private volatile IOException error;
+
+	/**
+	 * Opens the tables in the given directories and starts the background thread.
+	 * @param dirs output directories
+	 * @param gzip whether to compress the tables
+	 * @throws IOException if a table cannot be opened
+	 */
+	public MemberTableWriter(List<String> dirs, boolean gzip) throws IOException
+	{
+		writers = new Writer[dirs.size()];
+		try
+		{
+			for (int i = 0; i < writers.length; i++)
+			{
+				writers[i] = open(dirs.get(i), gzip);
+				writers[i].write(HEADER);
+			}
+		}
+		catch (IOException e)
+		{
+			closeWriters();
+			throw e;
+		}
+
+		thread = new Thread(this::drain, "member-table-writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @param dir an output directory
+	 * @return the member table in the directory, either plain or compressed, or null if there is none
+	 */
+	public static String find(String dir)
+	{
+		for (String name : new String[]{FILE, FILE + GZIP_EXTENSION})
+		{
+			if (Files.exists(Paths.get(dir, name))) return dir + "/" + name;
+		}
+		return null;
+	}
+
+	/**
+	 * Opens a member table for reading.
+	 * @param filename the table, plain or compressed
+	 * @return the reader
+	 * @throws IOException if the table cannot be read
+	 */
+	public static BufferedReader read(String filename) throws IOException
+	{
+		InputStream in = Files.newInputStream(Paths.get(filename));
+		if (filename.endsWith(GZIP_EXTENSION)) in = new GZIPInputStream(in, 1 << 16);
+		return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	private static Writer open(String dir, boolean gzip) throws IOException
+	{
+		OutputStream out = Files.newOutputStream(Paths.get(dir, FILE + (gzip ? GZIP_EXTENSION : "")));
+		if (gzip) out = new GZIPOutputStream(out, 1 << 16);
+		return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	/**
+	 * Adds the lines of a gene set, to be written in the background.
+	 * @param table index of the output directory
+	 * @param lines the lines, each starting with a line break
+	 */
+	public void add(int table, String lines)
+	{
+		put(new Block(table, lines));
+	}
+
+	private void put(Block block)
+	{
+		try
+		{
+			queue.put(block);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Writes the blocks until the end. After an error, the remaining blocks are dropped so that the caller does not
+	 * block on a full queue.
+	 */
+	private void drain()
+	{
+		try
+		{
+			for (Block block = queue.take(); block != END; block = queue.take())
+			{
+				if (error != null) continue;
+				try
+				{
+					writers[block.table].write(block.lines);
+				}
+				catch (IOException e)
+				{
+					error = e;
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			error = new InterruptedIOException("Member table writer is interrupted.");
+		}
+	}
+
+	/**
+	 * Waits for the written blocks and closes the tables.
+	 * @throws IOException if a table could not be written
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		put(END);
+		try
+		{
+			thread.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing the member tables.");
+		}
+
+		closeWriters();
+	}
+
+	private void closeWriters() throws IOException
+	{
+		for (Writer writer : writers)
+		{
+			if (writer == null) continue;
+			try
+			{
+				writer.close();
+			}
+			catch (IOException e)
+			{
+				if (error == null) error = e;
+			}
+		}
+		if (error != null) throw error;
+	}
+
+	private static class Block
+	{
+		final int table;
+		final String lines;
+
+		Block(int table, String lines)
+		{
+			this.table = table;
+			this.lines = lines;
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package org.panda.mutexdenovo;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds how many rounds a shuffle needs for a matrix, instead of the default of the randomizer. The randomizer is a
+ * Markov chain, and consecutive shuffles of a worker continue the same chain, hence a shuffle should be long enough for
+ * the tested statistics to forget the previous shuffle. The calibration runs the chain one round at a time, records
+ * the coverage of the gene sets after each round, and measures the autocorrelation of the coverages. The number of
+ * rounds is the smallest lag where the autocorrelation of almost all gene sets is negligible.
+ * <p>
+ * The calibration uses a fixed seed, hence gives the same number for the same matrix and gene sets. The number can be
+ * kept in a cache directory to skip the calibration in later runs.
+ */
+public class MixingCalibrator
+{
+	/**
+	 * Autocorrelation that is considered negligible.
+	 */
+	private static final double THRESHOLD = 0.05;
+
+	/**
+	 * Fraction of the gene sets whose autocorrelation should be negligible.
+	 */
+	private static final double QUANTILE = 0.95;
+
+	/**
+	 * Number of rounds whose coverages are recorded. The standard error of an autocorrelation is about the inverse
+	 * square root of this, well below the threshold.
+	 */
+	private static final int SERIES_LENGTH = 4000;
+
+	/**
+	 * Largest number of gene sets that are recorded. Larger collections are sampled evenly.
+	 */
+	private static final int MAX_SETS = 1000;
+
+	private static final long SEED = 0x5EEDCA11B4A7EL;
+
+	private static final String CACHE_EXTENSION = ".rounds";
+
+	/**
+	 * Finds the number of rounds for the matrix.
+	 * @param matrix the alteration matrix, which is not modified
+	 * @param index gene sets on the matrix, whose coverages are the tested statistics
+	 * @param randomType type of the random generator
+	 * @param randomizerType type of the randomizer
+	 * @return number of rounds, at most the default of the randomizer
+	 * @throws IOException if the randomizer fails
+	 */
+	public static int calibrate(Matrix matrix, GeneSetIndex index, String randomType, String randomizerType)
+		throws IOException
+	{
+		int defaultRounds = MatrixRandomizer.getDefaultRounds(randomizerType);
+		Matrix copy = matrix.copy();
+		RandomSource random = RandomSource.create(randomType, SEED);
+
+		// Start from a matrix that is already far from the original one
+		MatrixRandomizer.create(randomizerType, copy, random, defaultRounds).shuffle();
+		MatrixRandomizer shuffler = MatrixRandomizer.create(randomizerType, copy, random, 1);
+		CoverageTracker tracker = new CoverageTracker(copy, index);
+		shuffler.setTracker(tracker);
+
+		int step = Math.max(1, (index.size() + MAX_SETS - 1) / MAX_SETS);
+		int[] sets = new int[(index.size() + step - 1) / step];
+		for (int k = 0; k < sets.length; k++)
+		{
+			sets[k] = k * step;
+		}
+
+		double[][] series = new double[sets.length][SERIES_LENGTH];
+		for (int t = 0; t < SERIES_LENGTH; t++)
+		{
+			shuffler.shuffle();
+			for (int k = 0; k < sets.length; k++)
+			{
+				series[k][t] = tracker.getCoverage(sets[k]);
+			}
+		}
+
+		// Center the series, and drop the ones that do not vary
+		double[][] centered = Arrays.stream(series).filter(MixingCalibrator::center).toArray(double[][]::new);
+
+		if (centered.length == 0)
+		{
+			System.out.println("Coverages of the gene sets do not change with shuffling, hence the rounds cannot be " +
+				"calibrated. Using the default of " + defaultRounds + ".");
+			return defaultRounds;
+		}
+
+		double[] acf = new double[centered.length];
+		for (int lag = 1; lag < defaultRounds; lag++)
+		{
+			for (int k = 0; k < centered.length; k++)
+			{
+				acf[k] = autocorrelation(centered[k], lag);
+			}
+			Arrays.sort(acf);
+			double upper = acf[(int) Math.min(acf.length - 1, Math.ceil(QUANTILE * acf.length) - 1)];
+
+			if (upper <= THRESHOLD)
+			{
+				System.out.println("Rounds of the " + randomizerType + " randomizer calibrated to " + lag + " (default " +
+					"is " + defaultRounds + "), where the autocorrelation of set coverages is at most " +
+					String.format("%.3f", upper) + " for " + Math.round(QUANTILE * 100) + "% of " + centered.length +
+					" gene sets.");
+				return lag;
+			}
+		}
+
+		System.out.println("Coverages of the gene sets decorrelate slowly. Using the default rounds of " +
+			defaultRounds + ".");
+		return defaultRounds;
+	}
+
+	/**
+	 * Subtracts the mean and scales to unit variance.
+	 * @return false if the series is constant
+	 */
+	private static boolean center(double[] x)
+	{
+		double mean = Arrays.stream(x).average().orElse(0);
+		double var = 0;
+		for (int t = 0; t < x.length; t++)
+		{
+			x[t] -= mean;
+			var += x[t] * x[t];
+		}
+		if (var == 0) return false;
+
+		double sd = Math.sqrt(var / x.length);
+		for (int t = 0; t < x.length; t++)
+		{
+			x[t] /= sd;
+		}
+		return true;
+	}
+
+	private static double autocorrelation(double[] x, int lag)
+	{
+		double sum = 0;
+		for (int t = lag; t < x.length; t++)
+		{
+			sum += x[t] * x[t - lag];
+		}
+		return sum / x.length;
+	}
+
+	/**
+	 * Gets the number of rounds from the cache, or calibrates and caches it.
+	 * @param dir cache directory, or null to calibrate without caching
+	 * @param key key of the matrix and the gene sets
+	 * @param matrix the alteration matrix
+	 * @param index gene sets on the matrix
+	 * @param randomType type of the random generator
+	 * @param randomizerType type of the randomizer
+	 * @return number of rounds
+	 * @throws IOException if the cache cannot be read or written
+	 */
+	public static int getRounds(String dir, String key, Matrix matrix, GeneSetIndex index, String randomType,
+		String randomizerType) throws IOException
+	{
+		if (dir == null) return calibrate(matrix, index, randomType, randomizerType);
+
+		Path file = Paths.get(dir, key + CACHE_EXTENSION);
+		if (Files.exists(file))
+		{
+			List<String> lines = Files.readAllLines(file);
+			int rounds = Integer.valueOf(lines.get(0).trim());
+			System.out.println("Rounds of the " + randomizerType + " randomizer are " + rounds + " from the " +
+				"calibration cache.");
+			return rounds;
+		}
+
+		int rounds = calibrate(matrix, index, randomType, randomizerType);
+		Files.createDirectories(Paths.get(dir));
+		try (BufferedWriter writer = Files.newBufferedWriter(file))
+		{
+			writer.write(String.valueOf(rounds));
+		}
+		return rounds;
+	}
+}
@@ -0,0 +1,173 @@
+package org.panda.mutexdenovo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Parser for the sparse, long format of the alterations, where each line is a (sample, gene) record. The first line is
+ * a tab-delimited header that has a "Sample" and a "Gene" column, and other columns are ignored. Repeated records of
+ * the same sample and gene count once. The file can be gzip-compressed with the ".gz" extension.
+ * <p>
+ * Samples and genes are ordered by their first appearance. Samples without any alteration are not in the file, hence
+ * not in the matrix. This does not change the tests that shuffle the matrix, since the randomizations keep the
+ * alteration count of samples, but it changes the tests that depend on the number of samples, such as the label
+ * permutation of the differential test. For those, the list of all samples can be given with the mutation list.
+ */
+public class MutationListParser
+{
+	public static final String SAMPLE_COLUMN = "Sample";
+	public static final String GENE_COLUMN = "Gene";
+
+	private static final String DELIM = "\t";
+
+	private String[] colNames;
+
+	private String[] genes;
+
+	private long[][] rows;
+
+	/**
+	 * Checks if the file is a mutation list, by looking for the sample and gene columns in its header.
+	 * @param filename the file name
+	 * @return true if the file is a mutation list
+	 * @throws IOException if the file cannot be read
+	 */
+	public static boolean isMutationList(String filename) throws IOException
+	{
+		if (filename.equals(MatrixParser.STDIN)) return false;
+
+		try (BufferedReader reader = open(filename))
+		{
+			String header = reader.readLine();
+			return header != null && getColumn(header, SAMPLE_COLUMN) >= 0 && getColumn(header, GENE_COLUMN) >= 0;
+		}
+	}
+
+	/**
+	 * Reads the mutation list in one pass.
+	 * @param filename the file name
+	 * @return the parser with the matrix content
+	 * @throws IOException if the file cannot be read
+	 */
+	public static MutationListParser parse(String filename) throws IOException
+	{
+		return parse(filename, null);
+	}
+
+	/**
+	 * Reads the mutation list in one pass, with the list of all samples, including the samples without any mutation.
+	 * The sample list has a sample name in each line, and samples are ordered as in that list.
+	 * @param filename the file name
+	 * @param sampleList the sample list file, or null if samples are only the ones in the mutation list
+	 * @return the parser with the matrix content
+	 * @throws IOException if a file cannot be read
+	 */
+	public static MutationListParser parse(String filename, String sampleList) throws IOException
+	{
+		Map<String, Integer> sampleIndex = new LinkedHashMap<>();
+		Map<String, Integer> geneIndex = new LinkedHashMap<>();
+
+		if (sampleList != null)
+		{
+			try (BufferedReader reader = open(sampleList))
+			{
+				for (String line = reader.readLine(); line != null; line = reader.readLine())
+				{
+					if (!line.trim().isEmpty()) sampleIndex.putIfAbsent(line.trim(), sampleIndex.size());
+				}
+			}
+		}
+
+		// Alterations as sample and gene index pairs
+		int[] pairs = new int[1 << 12];
+		int size = 0;
+
+		try (BufferedReader reader = open(filename))
+		{
+			String header = reader.readLine();
+			int sampleCol = getColumn(header, SAMPLE_COLUMN);
+			int geneCol = getColumn(header, GENE_COLUMN);
+
+			int lineNum = 1;
+			for (String line = reader.readLine(); line != null; line = reader.readLine())
+			{
+				lineNum++;
+				if (line.isEmpty()) continue;
+
+				String[] t = line.split(DELIM);
+				if (t.length <= Math.max(sampleCol, geneCol))
+				{
+					throw new RuntimeException("Line " + lineNum + " of the mutation list does not have a sample and " +
+						"a gene: " + line);
+				}
+
+				String sample = t[sampleCol].trim();
+				if (sampleList != null && !sampleIndex.containsKey(sample))
+				{
+					throw new RuntimeException("Sample " + sample + " at line " + lineNum + " of the mutation list is " +
+						"not in the sample list " + sampleList);
+				}
+
+				Integer s = sampleIndex.computeIfAbsent(sample, k -> sampleIndex.size());
+				Integer g = geneIndex.computeIfAbsent(t[geneCol].trim(), k -> geneIndex.size());
+
+				if (size == pairs.length) pairs = Arrays.copyOf(pairs, size * 2);
+				pairs[size++] = s;
+				pairs[size++] = g;
+			}
+		}
+
+		MutationListParser parser = new MutationListParser();
+		parser.colNames = sampleIndex.keySet().toArray(new String[sampleIndex.size()]);
+		parser.genes = geneIndex.keySet().toArray(new String[geneIndex.size()]);
+		parser.rows = new long[parser.genes.length][Matrix.wordCount(parser.colNames.length)];
+
+		for (int i = 0; i < size; i += 2)
+		{
+			Matrix.set(parser.rows[pairs[i + 1]], pairs[i]);
+		}
+		return parser;
+	}
+
+	private static BufferedReader open(String filename) throws IOException
+	{
+		InputStream in = Files.newInputStream(Paths.get(filename));
+		if (filename.endsWith(".gz")) in = new GZIPInputStream(in, 1 << 16);
+		return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	/**
+	 * @return index of the column with the given name, ignoring case, or -1 if there is none
+	 */
+	private static int getColumn(String header, String name)
+	{
+		String[] t = header.split(DELIM);
+		for (int i = 0; i < t.length; i++)
+		{
+			if (t[i].trim().equalsIgnoreCase(name)) return i;
+		}
+		return -1;
+	}
+
+	public String[] getColNames()
+	{
+		return colNames;
+	}
+
+	public String[] getGenes()
+	{
+		return genes;
+	}
+
+	public long[][] getRows()
+	{
+		return rows;
+	}
+}
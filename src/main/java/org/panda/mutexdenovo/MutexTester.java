@@ -3,13 +3,16 @@ package org.panda.mutexdenovo;
 import org.panda.utility.FileUtil;
 import org.panda.utility.Progress;
 
-import java.io.BufferedWriter;
-import java.io.IOException;
+import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
 
 /**
  * Tests if the given gene sets are mutually exclusive or co-occurred in the given matrix.
@@ -22,183 +25,1292 @@ public class MutexTester
 	protected Matrix matrix;
 
 	/**
-	 * Gene sets to be tested for mutual exclusivity and co-occurrence.
+	 * Collections of gene sets to be tested for mutual exclusivity and co-occurrence. All collections are tested on
+	 * the same shuffled matrices.
 	 */
-	protected Map<String, Set<String>> geneSets;
+	protected List<Map<String, Set<String>>> collections;
 
 	/**
-	 * The output directory where the result will be written.
+	 * The output directory of each collection, where its results will be written.
 	 */
-	protected String outDir;
+	protected List<String> outDirs;
 
 	/**
 	 * Number of randomizations for testing. Run time is proportional to this number.
 	 */
 	protected int iteration;
 
+	/**
+	 * Number of threads that shuffle in parallel. Each thread shuffles its own copy of the matrix.
+	 */
+	protected int threads = 1;
+
+	/**
+	 * Optional thread pool to use for shuffling, shared with other testers. If not set, a pool is generated for the run.
+	 */
+	protected ExecutorService pool;
+
+	/**
+	 * Seed of the random number generators. If not set, a seed is generated and reported.
+	 */
+	protected Long seed;
+
+	/**
+	 * Type of the random number generator, if given. When resuming, the type of the checkpoint is used if not given.
+	 */
+	protected String randomType;
+
+	/**
+	 * Number of exceedances after which a gene set stops being tested, in the adaptive mode. Zero means that all
+	 * gene sets are tested for all iterations.
+	 */
+	protected int adaptiveExceedances = 0;
+
+	/**
+	 * Optional cache of shuffled matrices to replay or record.
+	 */
+	protected NullModelCache nullModelCache;
+
+	/**
+	 * Optional checkpoint to resume from and to save the state of the run.
+	 */
+	protected Checkpoint checkpoint;
+
+	/**
+	 * Index of this shard and the number of shards, if the iterations are divided into shards that run separately.
+	 * Zero shard count means the run is not sharded.
+	 */
+	protected int shardIndex;
+	protected int shardCount;
+
+	/**
+	 * Type of the matrix randomizer.
+	 */
+	protected String randomizerType = MatrixRandomizer.SWAP;
+
+	/**
+	 * Number of rounds in a shuffle, and whether it is calibrated for the matrix before shuffling. Zero means the
+	 * default of the randomizer.
+	 */
+	protected int swapRounds;
+	protected boolean calibrateSwapRounds;
+
+	/**
+	 * Optional directory to keep the calibrated swap rounds of matrices.
+	 */
+	protected String calibrationCache;
+
+	/**
+	 * Gene sets whose approximate mutex and cooc p-values after the pilot iterations are both above this threshold are
+	 * not tested further. Zero means no screening.
+	 */
+	protected double screenThreshold;
+
+	/**
+	 * Whether the p-values of the members are written into one table per output directory instead of two files for
+	 * each gene set, and whether that table is compressed.
+	 */
+	protected boolean memberTable;
+	protected boolean memberTableGzip;
+
+	/**
+	 * Writer of the member tables, which writes in the background until the results are written.
+	 */
+	private MemberTableWriter memberWriter;
+
+	/**
+	 * Number of iterations between the checks for the gene sets to stop testing, in the adaptive mode.
+	 */
+	private static final int ADAPTIVE_ROUND = 100;
+
+	/**
+	 * Number of pilot iterations that all gene sets are tested on, in the screening mode.
+	 */
+	private static final int SCREEN_PILOT = 100;
+
+	/**
+	 * Names of the measured phases of a run.
+	 */
+	static final String OBSERVED_PHASE = "observed";
+	static final String CALIBRATION_PHASE = "calibration";
+	static final String PERMUTATION_PHASE = "permutation";
+	static final String OUTPUT_PHASE = "output";
+
+	/**
+	 * Name of the meet counts file that a shard writes instead of the results.
+	 */
+	public static final String MEET_COUNTS_FILE = "meet-counts.txt";
+
+	/**
+	 * Value of the swap rounds that asks for calibration.
+	 */
+	public static final String CALIBRATE = "calibrate";
+
+	/**
+	 * Possible ways of writing the p-values of members.
+	 */
+	public static final String MEMBER_FILES = "files";
+	public static final String MEMBER_TABLE = "table";
+	public static final String MEMBER_TABLE_GZ = "table-gz";
+
+	/**
+	 * Name of the metrics report, written next to the results.
+	 */
+	public static final String METRICS_FILE = "metrics.json";
+
+	/**
+	 * Names of the gene sets, in the order used by the meet counts.
+	 */
+	protected String[] setNames;
+
+	/**
+	 * Genes of each gene set.
+	 */
+	protected List<Set<String>> setGenes;
+
+	/**
+	 * Index of the collection of each gene set.
+	 */
+	protected int[] setCollection;
+
+	/**
+	 * Members of each gene set, in the order used by the meet counts.
+	 */
+	protected String[][] setMembers;
+
+	/**
+	 * Coverage of each gene set in the original matrix.
+	 */
+	protected long[] observedCoverage;
+
+	/**
+	 * Sample hits of each member gene in its gene set, in the original matrix.
+	 */
+	protected long[][] observedGeneHits;
+
+	/**
+	 * Gene sets on the matrix.
+	 */
+	protected GeneSetIndex index;
+
+	/**
+	 * Whether each gene set is still being tested. Sets are retired only in the adaptive mode.
+	 */
+	protected boolean[] active;
+
+	/**
+	 * Meet counts of the finished run.
+	 */
+	protected MeetCounts counts;
+
+	/**
+	 * Performance measurements of the run.
+	 */
+	protected RunMetrics metrics = new RunMetrics();
+
 	public MutexTester(Matrix matrix, Map<String, Set<String>> geneSets, String outDir, int iteration)
+	{
+		this(matrix, Collections.singletonList(geneSets), Collections.singletonList(outDir), iteration);
+	}
+
+	/**
+	 * Constructor with several collections of gene sets, which are tested on the same shuffled matrices.
+	 * @param matrix alteration matrix
+	 * @param collections gene set collections
+	 * @param outDirs output directory of each collection
+	 * @param iteration number of randomizations
+	 */
+	public MutexTester(Matrix matrix, List<Map<String, Set<String>>> collections, List<String> outDirs, int iteration)
 	{
 		this.matrix = matrix;
-		this.geneSets = geneSets;
-		this.outDir = outDir;
+		this.collections = collections;
+		this.outDirs = outDirs;
 		this.iteration = iteration;
 	}
 
+	public void setThreads(int threads)
+	{
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets a thread pool to use instead of generating one. The tester does not shut down this pool.
+	 * @param pool the thread pool
+	 */
+	public void setPool(ExecutorService pool)
+	{
+		this.pool = pool;
+	}
+
+	public void setSeed(long seed)
+	{
+		this.seed = seed;
+	}
+
+	public void setRandomType(String randomType)
+	{
+		this.randomType = randomType;
+	}
+
+	/**
+	 * @return type of the random number generator, which is xoroshiro if not given
+	 */
+	protected String getRandomType()
+	{
+		return randomType == null ? RandomSource.XOROSHIRO : randomType;
+	}
+
+	/**
+	 * Turns on the adaptive mode, where a gene set stops being tested once both its mutex and cooc meet counts reach
+	 * the given number of exceedances. This is the sequential Monte Carlo test of Besag and Clifford (1991). Such a
+	 * set cannot be significant, and its p-value is calculated using the iterations until it stopped.
+	 * @param exceedances number of exceedances to stop testing a set
+	 */
+	public void setAdaptive(int exceedances)
+	{
+		this.adaptiveExceedances = exceedances;
+	}
+
+	/**
+	 * Sets the directory of the null model cache. Shuffled matrices are replayed from the cache if it has them for
+	 * the matrix, and recorded into the cache otherwise.
+	 * @param dir cache directory
+	 */
+	public void setNullModelCache(String dir)
+	{
+		this.nullModelCache = new NullModelCache(dir);
+	}
+
+	/**
+	 * Sets the checkpoint file. If the file exists, the run resumes from it, which also extends a finished run if the
+	 * iterations are increased. The state is saved into the file periodically and at the end of the run.
+	 * @param file checkpoint file
+	 * @param interval number of iterations between two saves
+	 */
+	public void setCheckpoint(String file, int interval)
+	{
+		this.checkpoint = new Checkpoint(file, interval);
+	}
+
+	/**
+	 * Makes this run a shard of a larger run. The shard runs its share of the iterations with its own random stream
+	 * from the seed, which should be the same for all shards. Instead of p-values, raw meet counts are written, to be
+	 * summed by ShardMerger.
+	 * @param index index of this shard, from 0
+	 * @param count number of shards
+	 */
+	public void setShard(int index, int count)
+	{
+		if (count < 1 || index < 0 || index >= count)
+		{
+			throw new RuntimeException("Invalid shard " + index + " of " + count + ". Shard index should be between 0 " +
+				"and shard count - 1.");
+		}
+		this.shardIndex = index;
+		this.shardCount = count;
+	}
+
+	/**
+	 * Turns on the screening. All gene sets are tested on the pilot iterations first, and the randomized coverages of
+	 * each set are approximated with a normal distribution. Sets whose approximate mutex and cooc p-values are both
+	 * above the threshold are not tested further, and their p-values are calculated using the pilot iterations, as in
+	 * the adaptive mode.
+	 * @param threshold screening threshold of the approximate p-values
+	 */
+	public void setScreen(double threshold)
+	{
+		if (threshold <= 0 || threshold > 1)
+		{
+			throw new RuntimeException("Screening threshold should be in (0, 1]: " + threshold);
+		}
+		this.screenThreshold = threshold;
+	}
+
+	/**
+	 * Sets the type of the matrix randomizer.
+	 * @param type either swap or curveball
+	 */
+	public void setRandomizer(String type)
+	{
+		if (!type.equals(MatrixRandomizer.SWAP) && !type.equals(MatrixRandomizer.CURVEBALL))
+		{
+			throw new RuntimeException("Unknown randomizer: " + type + ". Possible values: " + MatrixRandomizer.SWAP +
+				", " + MatrixRandomizer.CURVEBALL);
+		}
+		this.randomizerType = type;
+	}
+
+	/**
+	 * @return number of rounds in a shuffle
+	 */
+	public int getSwapRounds()
+	{
+		return swapRounds > 0 ? swapRounds : MatrixRandomizer.getDefaultRounds(randomizerType);
+	}
+
+	/**
+	 * Sets the number of rounds in a shuffle, or makes it calibrated for the matrix with MixingCalibrator.
+	 * @param rounds a positive number, or "calibrate"
+	 */
+	public void setSwapRounds(String rounds)
+	{
+		if (rounds.equals(CALIBRATE))
+		{
+			calibrateSwapRounds = true;
+			return;
+		}
+
+		swapRounds = Integer.valueOf(rounds);
+		calibrateSwapRounds = false;
+		if (swapRounds < 1) throw new RuntimeException("Swap rounds should be positive: " + rounds);
+	}
+
+	/**
+	 * Sets the directory to keep the calibrated swap rounds, so that later runs on the same matrix and gene sets do
+	 * not calibrate again.
+	 * @param dir cache directory
+	 */
+	public void setCalibrationCache(String dir)
+	{
+		this.calibrationCache = dir;
+	}
+
+	/**
+	 * Sets how the p-values of the members of gene sets are written.
+	 * @param output "files" for two files for each gene set, "table" for one table per output directory, or
+	 * "table-gz" for a compressed table
+	 */
+	public void setMemberOutput(String output)
+	{
+		switch (output)
+		{
+			case MEMBER_FILES:
+				memberTable = false;
+				break;
+			case MEMBER_TABLE:
+			case MEMBER_TABLE_GZ:
+				memberTable = true;
+				memberTableGzip = output.equals(MEMBER_TABLE_GZ);
+				break;
+			default:
+				throw new RuntimeException("Unknown member output: " + output + ". Possible values: " + MEMBER_FILES +
+					", " + MEMBER_TABLE + ", " + MEMBER_TABLE_GZ);
+		}
+	}
+
+	public boolean isShard()
+	{
+		return shardCount > 0;
+	}
+
 	public void run() throws IOException
 	{
 		// Generate output directories if do not exist
-		FileUtil.mkdirs(outDir);
+		outDirs.forEach(FileUtil::mkdirs);
+
+		metrics = new RunMetrics();
+		RunMetrics.Phase phase = metrics.start(OBSERVED_PHASE);
+
+		indexGeneSets();
 
 		// Record current coverages and overlaps
 
-		Map<String, Integer> currentCovMap = new HashMap<>();
-		Map<String, Integer> currentOvMap = new HashMap<>();
+		int[] currentCov = new int[setNames.length];
+		int[] currentOv = new int[setNames.length];
 
-		geneSets.forEach((id, genes) ->
+		for (int i = 0; i < setNames.length; i++)
 		{
-			currentCovMap.put(id, matrix.countCoverage(genes));
-			currentOvMap.put(id, matrix.countOverlap(genes));
-		});
+			currentCov[i] = matrix.countCoverage(setGenes.get(i));
+			currentOv[i] = matrix.countOverlap(setGenes.get(i));
+		}
+
+		phase.end();
 
 		// Calculate mutex and cooc p-values by shuffling
-		Map<String, Double>[] pvals = getMutexCoocPvals();
+		double[][] pvals = getMutexCoocPvals();
 
 		// Write results as a list
+		writeResults("Coverage\tOverlap\tMutex p-value\tCooc p-value",
+			i -> currentCov[i] + "\t" + currentOv[i], pvals);
+	}
+
+	/**
+	 * Decides the order of gene sets and members for the meet counts. Gene sets are ordered by their collection, then
+	 * by their names.
+	 */
+	protected void indexGeneSets()
+	{
+		List<String> names = new ArrayList<>();
+		List<Integer> colls = new ArrayList<>();
+		setGenes = new ArrayList<>();
+
+		for (int c = 0; c < collections.size(); c++)
+		{
+			Map<String, Set<String>> geneSets = collections.get(c);
+			for (String name : new TreeSet<>(geneSets.keySet()))
+			{
+				names.add(name);
+				colls.add(c);
+				setGenes.add(geneSets.get(name));
+			}
+		}
+
+		setNames = names.toArray(new String[names.size()]);
+		setCollection = colls.stream().mapToInt(Integer::intValue).toArray();
+		setMembers = setGenes.stream().map(genes -> genes.stream().sorted().toArray(String[]::new))
+			.toArray(String[][]::new);
+	}
+
+	/**
+	 * Writes the results of each collection as a list, ordered by the mutex p-values. The metrics report of the run is
+	 * written next to each results file.
+	 *
+	 * @param header header of the statistics and p-value columns
+	 * @param statistics provides the statistics columns of a gene set
+	 * @param pvals mutex and cooc p-values
+	 * @throws IOException if cannot write to the output directory
+	 */
+	protected void writeResults(String header, IntFunction<String> statistics, double[][] pvals) throws IOException
+	{
+		RunMetrics.Phase phase = metrics.start(OUTPUT_PHASE);
+
+		try
+		{
+			writeResultFiles(header, statistics, pvals);
+		}
+		finally
+		{
+			// The member tables are completed while the results are written
+			if (memberWriter != null)
+			{
+				MemberTableWriter writer = memberWriter;
+				memberWriter = null;
+				writer.close();
+			}
+		}
+
+		phase.end();
+
+		for (String dir : outDirs)
+		{
+			metrics.write(dir + "/" + METRICS_FILE);
+		}
+	}
+
+	private void writeResultFiles(String header, IntFunction<String> statistics, double[][] pvals) throws IOException
+	{
+		for (int c = 0; c < collections.size(); c++)
+		{
+			if (isShard())
+			{
+				writeMeetCounts(c, header, statistics);
+				continue;
+			}
+
+			int coll = c;
+			BufferedWriter writer = FileUtil.newBufferedWriter(outDirs.get(c) + "/results.txt");
 
-		BufferedWriter writer = FileUtil.newBufferedWriter(outDir + "/results.txt");
+			writer.write("ID\tGenes size\t" + header + (hasIterationsColumn() ? "\tIterations" : ""));
+			IntStream.range(0, setNames.length).filter(i -> setCollection[i] == coll).boxed()
+				.sorted(Comparator.comparing(i -> pvals[0][i])).forEach(i -> FileUtil.lnwrite(
+					setNames[i] + "\t" + setGenes.get(i).size() + "\t" + statistics.apply(i) + "\t" + pvals[0][i] + "\t" +
+						pvals[1][i] + getIterationsColumn(i), writer));
 
-		writer.write("ID\tGenes size\tCoverage\tOverlap\tMutex p-value\tCooc p-value");
-		geneSets.keySet().stream().sorted(Comparator.comparing(n -> pvals[0].get(n))).forEach(id -> FileUtil.lnwrite(
-			id + "\t" + geneSets.get(id).size() + "\t" + currentCovMap.get(id) + "\t" +
-				currentOvMap.get(id) + "\t" + pvals[0].get(id) + "\t" + pvals[1].get(id), writer));
+			writer.close();
+		}
+	}
+
+	/**
+	 * Writes the meet counts of the gene sets in the collection and their members, with the statistics columns to
+	 * write into the results after merging. The shard, the seed, the matrix and the iterations of the run are written
+	 * first, for the merge to check that the shards belong to the same run.
+	 */
+	private void writeMeetCounts(int collection, String header, IntFunction<String> statistics) throws IOException
+	{
+		BufferedWriter writer = FileUtil.newBufferedWriter(outDirs.get(collection) + "/" + MEET_COUNTS_FILE);
+		writer.write("Header\t" + header);
+		FileUtil.lnwrite("Shard\t" + shardIndex + "\t" + shardCount, writer);
+		FileUtil.lnwrite("Seed\t" + seed, writer);
+		FileUtil.lnwrite("Matrix\t" + getMatrixHash(), writer);
+		FileUtil.lnwrite("Iterations\t" + iteration, writer);
+		FileUtil.lnwrite("Adaptive\t" + hasIterationsColumn(), writer);
+
+		for (int i = 0; i < setNames.length; i++)
+		{
+			if (setCollection[i] != collection) continue;
 
+			FileUtil.lnwrite("Set\t" + setNames[i] + "\t" + counts.iterations[i] + "\t" + counts.mutex[i] + "\t" +
+				counts.cooc[i] + "\t" + statistics.apply(i), writer);
+
+			for (int j = 0; j < setMembers[i].length; j++)
+			{
+				FileUtil.lnwrite("Gene\t" + setMembers[i][j] + "\t" + counts.geneMutex[i][j] + "\t" +
+					counts.geneCooc[i][j], writer);
+			}
+		}
 		writer.close();
 	}
 
+	/**
+	 * Writes the results of the counts that are merged from shards, as a finished run would write. The gene sets of
+	 * the tester should be the sets in the counts.
+	 * @param header header of the statistics and p-value columns
+	 * @param statistics statistics columns of each gene set
+	 * @param setCounts iterations, mutex and cooc counts of each gene set
+	 * @param geneCounts mutex and cooc counts of the members of each gene set
+	 * @param adaptive whether the shards were adaptive, for the iterations column
+	 * @throws IOException if cannot write to the output directory
+	 */
+	void writeMergedResults(String header, Map<String, String> statistics, Map<String, int[]> setCounts,
+		Map<String, Map<String, int[]>> geneCounts, boolean adaptive) throws IOException
+	{
+		outDirs.forEach(FileUtil::mkdirs);
+		indexGeneSets();
+
+		counts = new MeetCounts(setMembers);
+		for (int i = 0; i < setNames.length; i++)
+		{
+			int[] c = setCounts.get(setNames[i]);
+			counts.iterations[i] = c[0];
+			counts.mutex[i] = c[1];
+			counts.cooc[i] = c[2];
+
+			for (int j = 0; j < setMembers[i].length; j++)
+			{
+				int[] g = geneCounts.get(setNames[i]).get(setMembers[i][j]);
+				counts.geneMutex[i][j] = g[0];
+				counts.geneCooc[i][j] = g[1];
+			}
+		}
+
+		adaptiveExceedances = adaptive ? 1 : 0;
+		writeResults(header, i -> statistics.get(setNames[i]), calculateAndWritePvalues(counts));
+	}
+
+	/**
+	 * @return whether the results have the iterations of each gene set, which differ in the adaptive and screening
+	 * modes
+	 */
+	protected boolean hasIterationsColumn()
+	{
+		return adaptiveExceedances > 0 || screenThreshold > 0;
+	}
+
+	/**
+	 * @return number of iterations of this run, which is the share of this shard if sharded
+	 */
+	protected int getRunIterations()
+	{
+		return isShard() ? getShare(iteration, shardCount, shardIndex) : iteration;
+	}
+
 	/**
 	 * Calculates mutex and cooc p-values by shuffling the matrix iteratively. Also generates individual p-values for
-	 * members of each gene set in the given output directory.
+	 * members of each gene set in the output directory of its collection.
 	 *
-	 * @return p-values
+	 * @return mutex and cooc p-values, in the order of gene sets
 	 * @throws IOException if cannot write to the output directory
 	 */
-	protected Map<String, Double>[] getMutexCoocPvals() throws IOException
+	protected double[][] getMutexCoocPvals() throws IOException
 	{
-		// Get edge representation of the matrix
-		List<Matrix.Edge> edges = matrix.getEdges();
+		RunMetrics.Phase phase = metrics.start(OBSERVED_PHASE);
+		recordObservedStatistics();
+		phase.end();
+
+		if (calibrateSwapRounds)
+		{
+			phase = metrics.start(CALIBRATION_PHASE);
+			swapRounds = calibrate();
+			phase.end();
+		}
+		metrics.setSwapRounds(getSwapRounds());
 
-		// Initiate current coverage maps
-		Map<String, Map<Integer, Long>> coverageMap = geneSets.keySet().stream().collect(
-			Collectors.toMap(Function.identity(), name -> getSampleHitCounts(edges, geneSets.get(name))));
+		// Start shuffling and recording
+		phase = metrics.start(PERMUTATION_PHASE);
+		counts = permute("Shuffling the matrix " + getRunIterations() + " times");
+		phase.end();
 
-		// Initiate group meet maps
-		Map<String, Integer> mutexMeetMap = geneSets.keySet().stream().collect(
-			Collectors.toMap(Function.identity(), name -> 0));
-		Map<String, Integer> coocMeetMap = geneSets.keySet().stream().collect(
-			Collectors.toMap(Function.identity(), name -> 0));
+		// Shards only report the counts
+		if (isShard()) return null;
 
-		// Initiate gene-specific meet maps
-		Map<String, Map<String, Integer>> geneMutexMeetMaps = geneSets.keySet().stream().collect(Collectors.toMap(Function.identity(),
-			name -> geneSets.get(name).stream().collect(Collectors.toMap(Function.identity(), gene -> 0))));
-		Map<String, Map<String, Integer>> geneCoocMeetMaps = geneSets.keySet().stream().collect(Collectors.toMap(Function.identity(),
-			name -> geneSets.get(name).stream().collect(Collectors.toMap(Function.identity(), gene -> 0))));
+		// Calculate p-values, write and return
+		phase = metrics.start(OUTPUT_PHASE);
+		double[][] pvals = calculateAndWritePvalues(counts);
+		phase.end();
+		return pvals;
+	}
 
-		// Get current gene to sample indices
-		Map<String, Map<String, Set<Integer>>> origGeneToIndices = geneSets.keySet().stream().collect(Collectors.toMap(Function.identity(),
-			name -> getGeneToIndices(edges, geneSets.get(name))));
+	/**
+	 * Fills in the observed coverage of gene sets and the observed sample hits of their members.
+	 */
+	protected void recordObservedStatistics()
+	{
+		index = new GeneSetIndex(matrix, setMembers);
+		observedCoverage = new long[setNames.length];
+		observedGeneHits = new long[setNames.length][];
 
-		// Initiate gene-specific current sample hits
-		Map<String, Map<String, Long>> geneSampleHitMaps = geneSets.keySet().stream().collect(Collectors.toMap(Function.identity(),
-			name -> geneSets.get(name).stream().collect(Collectors.toMap(Function.identity(),
-				gene -> getSampleHitsForGeneInGroup(origGeneToIndices.get(name), gene, coverageMap.get(name))))));
+		for (int i = 0; i < setNames.length; i++)
+		{
+			Set<String> genes = setGenes.get(i);
+			Map<Integer, Long> sampleHitCounts = getSampleHitCounts(matrix, genes);
+			Map<String, Set<Integer>> geneToIndices = getGeneToIndices(matrix, genes);
 
-		Shuffler shuffler = new Shuffler(matrix);
+			observedCoverage[i] = sampleHitCounts.size();
+			observedGeneHits[i] = Arrays.stream(setMembers[i])
+				.mapToLong(gene -> getSampleHitsForGeneInGroup(geneToIndices, gene, sampleHitCounts)).toArray();
+		}
+	}
 
-		// Start shuffling and recording
-		Progress prg = new Progress(iteration, "Shuffling the matrix " + iteration + " times");
-		for (int i = 0; i < iteration; i++)
+	/**
+	 * Randomizes the matrix for the number of iterations and counts the meets. Iterations are distributed to the
+	 * threads, where each thread has its own worker, and the counts of the workers are merged. Each worker gets its own
+	 * stream of random numbers, split from the seed of the run in the order of the workers. Hence, a run with the same
+	 * seed and the same number of threads is reproduced exactly. In the adaptive mode, iterations are run in rounds,
+	 * and the gene sets that are settled are retired after each round.
+	 *
+	 * @param message message to display with the progress
+	 * @return meet counts
+	 * @throws IOException if the null model cache cannot be read or written
+	 */
+	protected MeetCounts permute(String message) throws IOException
+	{
+		active = new boolean[setNames.length];
+		Arrays.fill(active, true);
+		MeetCounts total = new MeetCounts(setMembers);
+
+		int iterations = getRunIterations();
+		int n = Math.max(1, Math.min(threads, iterations));
+		int done = 0;
+		byte[][] states = null;
+		String key = null;
+
+		if (checkpoint != null)
 		{
-			shuffler.shuffle();
+			if (nullModelCache != null)
+			{
+				throw new RuntimeException("Checkpoints cannot be used together with the null model cache.");
+			}
 
-			coverageMap.forEach((name, origCov) ->
+			key = Checkpoint.getKey(describeRun());
+			if (checkpoint.exists())
 			{
-				Map<Integer, Long> sampleHitCounts = getSampleHitCounts(edges, geneSets.get(name));
-				int cov = sampleHitCounts.size();
-				if (cov >= origCov.size()) mutexMeetMap.put(name, mutexMeetMap.get(name) + 1);
-				if (cov <= origCov.size()) coocMeetMap.put(name, coocMeetMap.get(name) + 1);
+				checkpoint.load(key, total, active);
 
-				Map<String, Set<Integer>> geneToIndices = getGeneToIndices(edges, geneSets.get(name));
+				if ((seed != null && seed != checkpoint.getSeed()) ||
+					(randomType != null && !randomType.equals(checkpoint.getRandomType())))
+				{
+					throw new RuntimeException("The checkpoint is of seed " + checkpoint.getSeed() + " and random " +
+						"generator " + checkpoint.getRandomType() + ", which should not be changed when resuming.");
+				}
 
-				updateGeneMutexMeetMap(geneToIndices, sampleHitCounts, geneMutexMeetMaps.get(name), geneSampleHitMaps.get(name));
-				updateGeneCoocMeetMap(geneToIndices, sampleHitCounts, geneCoocMeetMaps.get(name), geneSampleHitMaps.get(name));
-			});
-			prg.tick();
+				seed = checkpoint.getSeed();
+				randomType = checkpoint.getRandomType();
+				done = checkpoint.getDone();
+				states = checkpoint.getWorkerStates();
+				n = states.length;
+				System.out.println("Resuming from the checkpoint at " + done + " iterations, with " + n + " workers.");
+			}
 		}
 
-		// Calculate p-values, write and return
-		return calculateAndWritePvalues(mutexMeetMap, coocMeetMap, geneMutexMeetMaps, geneCoocMeetMaps);
+		if (seed == null)
+		{
+			if (shardCount > 0) throw new RuntimeException("Shards of a run should be given the same seed.");
+			seed = System.nanoTime();
+		}
+		System.out.println("Random seed: " + seed);
+		RandomSource root = RandomSource.create(getRandomType(), seed);
+
+		// Each shard takes its own stream from the seed, and splits the streams of its workers from that
+		if (shardCount > 0)
+		{
+			for (int s = 0; s < shardIndex; s++)
+			{
+				root.split();
+			}
+			root = root.split();
+		}
+
+		// Workers are generated in their threads at the first round, but their random streams are split here in order
+		RandomSource[] randoms = new RandomSource[n];
+		for (int t = 0; t < n; t++)
+		{
+			randoms[t] = root.split();
+		}
+		Worker[] workers = new Worker[n];
+
+		Progress prg = new Progress(Math.max(0, iterations - done), message);
+		ExecutorService pool = n == 1 ? null : this.pool != null ? this.pool : Executors.newFixedThreadPool(n);
+		Throwable failure = null;
+
+		try
+		{
+			int saved = done;
+			boolean anyActive = IntStream.range(0, active.length).anyMatch(i -> active[i]);
+
+			while (done < iterations && anyActive)
+			{
+				int round = iterations - done;
+				if (screenThreshold > 0 && done < SCREEN_PILOT)
+				{
+					// The pilot is checkpointed too, as screening happens at its end regardless of its rounds
+					round = Math.min(SCREEN_PILOT - done, round);
+					if (checkpoint != null) round = Math.min(checkpoint.getInterval(), round);
+				}
+				else if (adaptiveExceedances > 0) round = Math.min(ADAPTIVE_ROUND, round);
+				else if (checkpoint != null) round = Math.min(checkpoint.getInterval(), round);
+
+				runRound(pool, workers, randoms, states, done, round, total, prg);
+				done += round;
+
+				if (screenThreshold > 0 && done == SCREEN_PILOT) anyActive = screenSets(total, workers);
+				if (adaptiveExceedances > 0) anyActive = retireSettledSets(total, workers);
+
+				if (checkpoint != null && (done - saved >= checkpoint.getInterval() || done >= iterations || !anyActive))
+				{
+					checkpoint.save(key, seed, getRandomType(), done, total, active, workers);
+					saved = done;
+				}
+
+				if (!anyActive) System.out.println("\nAll gene sets are settled after " + done + " iterations.");
+			}
+		}
+		catch (Throwable e)
+		{
+			failure = e;
+			throw e;
+		}
+		finally
+		{
+			if (pool != null && pool != this.pool) pool.shutdown();
+
+			// A failed run also releases the files and helper threads of the workers, but does not complete the files
+			closeWorkers(workers, failure);
+		}
+
+		metrics.setSetEvaluations(total);
+		return total;
+	}
+
+	/**
+	 * Adds the metrics of the generated workers and closes them, or aborts them if the run failed. All workers are
+	 * closed even if some fail to close. If the run failed, the failures in closing are added to the failure of the run
+	 * as suppressed, so that they do not hide it.
+	 *
+	 * @param workers the workers, some of which may not be generated
+	 * @param failure failure of the run, or null if it succeeded
+	 * @throws IOException if a worker of a successful run fails to close
+	 */
+	private void closeWorkers(Worker[] workers, Throwable failure) throws IOException
+	{
+		Exception closeFailure = null;
+		for (Worker worker : workers)
+		{
+			if (worker == null) continue;
+
+			metrics.addWorker(worker.getMetrics());
+			try
+			{
+				if (failure == null) worker.close();
+				else worker.abort();
+			}
+			catch (IOException | RuntimeException e)
+			{
+				if (failure != null) failure.addSuppressed(e);
+				else if (closeFailure == null) closeFailure = e;
+				else closeFailure.addSuppressed(e);
+			}
+		}
+		if (closeFailure instanceof RuntimeException) throw (RuntimeException) closeFailure;
+		if (closeFailure != null) throw (IOException) closeFailure;
+	}
+
+	/**
+	 * Runs the given number of iterations, distributed to the workers, and adds their meets to the total. Each worker
+	 * gets its share of the iterations until the end of the round, hence the iterations of a worker do not depend on
+	 * how the run is divided into rounds. Missing workers are generated, and restored from the given states if there
+	 * are any.
+	 */
+	private void runRound(ExecutorService pool, Worker[] workers, RandomSource[] randoms, byte[][] states, int done,
+		int round, MeetCounts total, Progress prg) throws IOException
+	{
+		if (pool == null)
+		{
+			if (workers[0] == null) workers[0] = startWorker(randoms[0], 0, states);
+			for (int i = 0; i < round; i++)
+			{
+				workers[0].iterate(total);
+				prg.tick();
+			}
+			return;
+		}
+
+		int n = workers.length;
+		List<Future<MeetCounts>> futures = new ArrayList<>();
+
+		for (int t = 0; t < n; t++)
+		{
+			int w = t;
+			int share = getShare(done + round, n, w) - getShare(done, n, w);
+
+			futures.add(pool.submit(() ->
+			{
+				if (workers[w] == null) workers[w] = startWorker(randoms[w], w, states);
+				MeetCounts counts = new MeetCounts(setMembers);
+				for (int i = 0; i < share; i++)
+				{
+					workers[w].iterate(counts);
+					synchronized (prg)
+					{
+						prg.tick();
+					}
+				}
+				return counts;
+			}));
+		}
+
+		try
+		{
+			for (Future<MeetCounts> future : futures)
+			{
+				total.add(future.get());
+			}
+		}
+		catch (InterruptedException | ExecutionException e)
+		{
+			futures.forEach(future -> future.cancel(true));
+			throw new RuntimeException("Shuffling failed.", e);
+		}
+	}
+
+	/**
+	 * @return number of iterations of the worker in the first given iterations of the run
+	 */
+	private static int getShare(int iterations, int workerCount, int worker)
+	{
+		return iterations / workerCount + (worker < iterations % workerCount ? 1 : 0);
+	}
+
+	/**
+	 * Generates the worker, and restores its saved state if there is one.
+	 */
+	private Worker startWorker(RandomSource random, int stream, byte[][] states) throws IOException
+	{
+		Worker worker = createWorker(random, stream);
+		if (states != null)
+		{
+			worker.readState(new DataInputStream(new ByteArrayInputStream(states[stream])));
+		}
+		worker.retain(active);
+		return worker;
+	}
+
+	/**
+	 * Describes the matrix, the gene sets and the settings that the meet counts depend on, to match a checkpoint to
+	 * the run.
+	 * @return description of the run
+	 */
+	protected String describeRun()
+	{
+		StringBuilder sb = new StringBuilder(getClass().getName());
+		sb.append("\n").append(matrix.getContentHash()).append("\n").append(adaptiveExceedances);
+		if (isShard()) sb.append("\nshard ").append(shardIndex).append(" of ").append(shardCount);
+		if (screenThreshold > 0) sb.append("\nscreen ").append(screenThreshold);
+		if (!randomizerType.equals(MatrixRandomizer.SWAP)) sb.append("\nrandomizer ").append(randomizerType);
+		if (getSwapRounds() != MatrixRandomizer.getDefaultRounds(randomizerType))
+		{
+			sb.append("\nswap rounds ").append(getSwapRounds());
+		}
+		for (int i = 0; i < setNames.length; i++)
+		{
+			sb.append("\n").append(setNames[i]).append("\t").append(String.join(" ", setMembers[i]));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return hash of the content of the tested matrices
+	 */
+	protected String getMatrixHash()
+	{
+		return matrix.getContentHash();
+	}
+
+	/**
+	 * Writes the state of a random number stream and a shuffled matrix.
+	 */
+	protected static void writeState(DataOutput out, RandomSource random, Matrix copy) throws IOException
+	{
+		for (long s : random.getState())
+		{
+			out.writeLong(s);
+		}
+
+		Matrix.Edges edges = copy.getEdges();
+		out.writeInt(edges.size());
+		for (int e = 0; e < edges.size(); e++)
+		{
+			out.writeInt(edges.sampleIdx[e]);
+		}
+	}
+
+	/**
+	 * Restores the state of a random number stream and a shuffled matrix, written by writeState.
+	 */
+	protected static void readState(DataInput in, RandomSource random, Matrix copy) throws IOException
+	{
+		long[] state = random.getState();
+		for (int i = 0; i < state.length; i++)
+		{
+			state[i] = in.readLong();
+		}
+		random.setState(state);
+
+		int[] sampleIdx = new int[in.readInt()];
+		for (int e = 0; e < sampleIdx.length; e++)
+		{
+			sampleIdx[e] = in.readInt();
+		}
+		copy.setSampleIndices(sampleIdx);
 	}
 
 	/**
-	 * Calculates p-values and writes them into files, also returns.
+	 * Retires the active gene sets whose mutex and cooc meet counts both reached the required exceedances, and lets
+	 * the workers stop tracking them.
 	 *
-	 * @param mutexMeetMap
-	 * @param coocMeetMap
-	 * @param geneMutexMeetMaps
-	 * @param geneCoocMeetMaps
-	 * @return
-	 * @throws IOException
-	 */
-	protected Map<String, Double>[] calculateAndWritePvalues(
-		Map<String, Integer> mutexMeetMap, Map<String, Integer> coocMeetMap,
-		Map<String, Map<String, Integer>> geneMutexMeetMaps, Map<String, Map<String, Integer>> geneCoocMeetMaps) throws IOException
-	{
-		// Calculate gene p-values
-		Map<String, Map<String, Double>> geneMutexPvalMaps = geneSets.keySet().stream().collect(Collectors.toMap(Function.identity(),
-			name -> geneSets.get(name).stream().collect(Collectors.toMap(Function.identity(),
-				gene -> geneMutexMeetMaps.get(name).get(gene) / (double) iteration))));
-		Map<String, Map<String, Double>> geneCoocPvalMaps = geneSets.keySet().stream().collect(Collectors.toMap(Function.identity(),
-			name -> geneSets.get(name).stream().collect(Collectors.toMap(Function.identity(),
-				gene -> geneCoocMeetMaps.get(name).get(gene) / (double) iteration))));
-
-		// Write gene p-values
-		for (String name : geneSets.keySet())
-		{
-			BufferedWriter writer1 = Files.newBufferedWriter(Paths.get(outDir + "/" + name + "-mutex.txt"));
-			geneMutexPvalMaps.get(name).keySet().stream().sorted(Comparator.comparing(geneMutexPvalMaps.get(name)::get))
-				.forEach(gene -> FileUtil.writeln(gene + "\t" + geneMutexPvalMaps.get(name).get(gene), writer1));
-			writer1.close();
-
-			BufferedWriter writer2 = Files.newBufferedWriter(Paths.get(outDir + "/" + name + "-cooc.txt"));
-			geneCoocPvalMaps.get(name).keySet().stream().sorted(Comparator.comparing(geneCoocPvalMaps.get(name)::get))
-				.forEach(gene -> FileUtil.writeln(gene + "\t" + geneCoocPvalMaps.get(name).get(gene), writer2));
-			writer2.close();
-		}
-
-		// Calculate and return group p-values
-		return new Map[]{
-			mutexMeetMap.keySet().stream().collect(Collectors.toMap(
-				Function.identity(), name -> mutexMeetMap.get(name) / (double) iteration)),
-			coocMeetMap.keySet().stream().collect(Collectors.toMap(
-				Function.identity(), name -> coocMeetMap.get(name) / (double) iteration))
+	 * @return true if there are still active gene sets
+	 */
+	private boolean retireSettledSets(MeetCounts counts, Worker[] workers)
+	{
+		boolean changed = false;
+		boolean anyActive = false;
+
+		for (int i = 0; i < active.length; i++)
+		{
+			if (active[i] && counts.mutex[i] >= adaptiveExceedances && counts.cooc[i] >= adaptiveExceedances)
+			{
+				active[i] = false;
+				changed = true;
+			}
+			anyActive |= active[i];
+		}
+
+		if (changed)
+		{
+			for (Worker worker : workers)
+			{
+				if (worker != null) worker.retain(active);
+			}
+		}
+		return anyActive;
+	}
+
+	/**
+	 * Stops testing the gene sets whose approximate p-values after the pilot iterations are both above the screening
+	 * threshold. Randomized coverages of a set are approximated with a normal distribution of their mean and variance.
+	 * @return whether any gene set is still active
+	 */
+	private boolean screenSets(MeetCounts counts, Worker[] workers)
+	{
+		boolean anyActive = false;
+		int n = 0;
+
+		for (int i = 0; i < active.length; i++)
+		{
+			if (active[i] && counts.iterations[i] > 1)
+			{
+				double mean = counts.coverageSum[i] / counts.iterations[i];
+				double var = (counts.coverageSumSq[i] - mean * counts.coverageSum[i]) / (counts.iterations[i] - 1);
+				double sd = Math.sqrt(Math.max(0, var));
+
+				// With continuity correction, as coverages are integers
+				double mutexP = sd == 0 ? (observedCoverage[i] <= mean ? 1 : 0) :
+					1 - normalCdf((observedCoverage[i] - 0.5 - mean) / sd);
+				double coocP = sd == 0 ? (observedCoverage[i] >= mean ? 1 : 0) :
+					normalCdf((observedCoverage[i] + 0.5 - mean) / sd);
+
+				if (Math.min(mutexP, coocP) > screenThreshold)
+				{
+					active[i] = false;
+					n++;
+				}
+			}
+			anyActive |= active[i];
+		}
+
+		System.out.println("\nScreened out " + n + " of " + active.length + " gene sets after " + SCREEN_PILOT +
+			" pilot iterations.");
+
+		if (n > 0)
+		{
+			for (Worker worker : workers)
+			{
+				if (worker != null) worker.retain(active);
+			}
+		}
+		return anyActive;
+	}
+
+	/**
+	 * Standard normal distribution function, from the complementary error function approximation 7.1.26 of
+	 * Abramowitz and Stegun, which has an absolute error less than 1.5e-7.
+	 */
+	private static double normalCdf(double z)
+	{
+		double x = Math.abs(z) / Math.sqrt(2);
+		double t = 1 / (1 + 0.3275911 * x);
+		double erfc = t * (0.254829592 + t * (-0.284496736 + t * (1.421413741 + t * (-1.453152027 +
+			t * 1.061405429)))) * Math.exp(-x * x);
+		return z >= 0 ? 1 - erfc / 2 : erfc / 2;
+	}
+
+	/**
+	 * Generates a worker that will shuffle its own copy of the matrix. Coverages of the gene sets are tracked during
+	 * shuffling, hence evaluating a shuffled matrix does not need a scan of the matrix. This method is called from the
+	 * thread that will use the worker, hence should not modify the state of the tester.
+	 *
+	 * @param random random number stream of the worker
+	 * @param stream index of the worker
+	 * @return a new worker
+	 * @throws IOException if the null model cache cannot be opened
+	 */
+	protected Worker createWorker(RandomSource random, int stream) throws IOException
+	{
+		Matrix copy = matrix.copy();
+		MatrixRandomizer shuffler = createRandomizer(matrix, copy, random, stream);
+		CoverageTracker tracker = new CoverageTracker(copy, index);
+		shuffler.setTracker(tracker);
+		RunMetrics.WorkerMetrics workerMetrics = new RunMetrics.WorkerMetrics();
+
+		return new Worker()
+		{
+			@Override
+			public void iterate(MeetCounts counts) throws IOException
+			{
+				workerMetrics.startIteration();
+				shuffler.shuffle();
+				workerMetrics.endShuffle();
+
+				for (int i = 0; i < setNames.length; i++)
+				{
+					if (!active[i]) continue;
+
+					counts.recordSet(i, tracker.getCoverage(i), observedCoverage[i]);
+
+					for (int j = 0; j < setMembers[i].length; j++)
+					{
+						if (tracker.isAltered(i, j))
+						{
+							counts.recordGene(i, j, tracker.getGeneHits(i, j), observedGeneHits[i][j]);
+						}
+					}
+				}
+				workerMetrics.endIteration();
+			}
+
+			@Override
+			public void retain(boolean[] active)
+			{
+				tracker.retain(active);
+			}
+
+			@Override
+			public RunMetrics.WorkerMetrics getMetrics()
+			{
+				workerMetrics.setSwaps(shuffler);
+				return workerMetrics;
+			}
+
+			@Override
+			public void writeState(DataOutput out) throws IOException
+			{
+				MutexTester.writeState(out, random, copy);
+			}
+
+			@Override
+			public void readState(DataInput in) throws IOException
+			{
+				MutexTester.readState(in, random, copy);
+				tracker.recount();
+			}
+
+			@Override
+			public void close() throws IOException
+			{
+				shuffler.close();
+			}
+
+			@Override
+			public void abort() throws IOException
+			{
+				shuffler.abort();
+			}
 		};
 	}
 
+	/**
+	 * Generates the randomizer for a copy of the given matrix, considering the null model cache. If the shuffles are
+	 * shorter than the default, the copy is shuffled here for the rest of the default, since the first shuffle starts
+	 * from the original matrix and needs to go farther. This is skipped if the shuffles are replayed from the cache.
+	 * Hence, trackers of the copy should be generated after this.
+	 *
+	 * @param original the unshuffled matrix
+	 * @param copy the copy to randomize
+	 * @param random random number stream to use in shuffling
+	 * @param stream index of the worker
+	 * @return the randomizer
+	 * @throws IOException if the null model cache cannot be opened
+	 */
+	protected MatrixRandomizer createRandomizer(Matrix original, Matrix copy, RandomSource random, int stream)
+		throws IOException
+	{
+		int rounds = getSwapRounds();
+		MatrixRandomizer shuffler = MatrixRandomizer.create(randomizerType, copy, random, rounds);
+
+		if (nullModelCache != null)
+		{
+			MatrixRandomizer replayer = nullModelCache.replay(original, copy, stream, randomizerType, rounds,
+				shuffler);
+			if (replayer != null) return replayer;
+		}
+
+		int defaultRounds = MatrixRandomizer.getDefaultRounds(randomizerType);
+		if (rounds < defaultRounds)
+		{
+			MatrixRandomizer.create(randomizerType, copy, random, defaultRounds - rounds).shuffle();
+		}
+
+		if (nullModelCache == null) return shuffler;
+		return nullModelCache.record(original, copy, stream, randomizerType, rounds, shuffler);
+	}
+
+	/**
+	 * Calibrates the swap rounds for the matrix, using the cache if there is one.
+	 * @return number of swap rounds
+	 * @throws IOException if the cache cannot be read or written
+	 */
+	protected int calibrate() throws IOException
+	{
+		return calibrate(matrix, index);
+	}
+
+	/**
+	 * Calibrates the swap rounds for the given matrix and its gene set index.
+	 */
+	protected int calibrate(Matrix matrix, GeneSetIndex index) throws IOException
+	{
+		StringBuilder sb = new StringBuilder(matrix.getContentHash()).append("\n").append(getRandomType()).append("\n")
+			.append(randomizerType);
+		for (int i = 0; i < setNames.length; i++)
+		{
+			sb.append("\n").append(setNames[i]).append("\t").append(String.join(" ", setMembers[i]));
+		}
+		return MixingCalibrator.getRounds(calibrationCache, Checkpoint.getKey(sb.toString()), matrix, index,
+			getRandomType(), randomizerType);
+	}
+
+	/**
+	 * Calculates p-values and writes them into files, also returns. In the member table mode, the p-values of the
+	 * members are written in the background, and the tables are completed when the results are written.
+	 *
+	 * @param counts meet counts of the gene sets and their members
+	 * @return mutex and cooc p-values, in the order of gene sets
+	 * @throws IOException if cannot write to the output directory
+	 */
+	protected double[][] calculateAndWritePvalues(MeetCounts counts) throws IOException
+	{
+		double[][] pvals = new double[2][setNames.length];
+
+		if (memberTable) memberWriter = new MemberTableWriter(outDirs, memberTableGzip);
+
+		for (int i = 0; i < setNames.length; i++)
+		{
+			String name = setNames[i];
+			String dir = outDirs.get(setCollection[i]);
+
+			// Calculate gene p-values
+			Map<String, Double> geneMutexPvals = new HashMap<>();
+			Map<String, Double> geneCoocPvals = new HashMap<>();
+			for (int j = 0; j < setMembers[i].length; j++)
+			{
+				geneMutexPvals.put(setMembers[i][j], counts.geneMutex[i][j] / (double) counts.iterations[i]);
+				geneCoocPvals.put(setMembers[i][j], counts.geneCooc[i][j] / (double) counts.iterations[i]);
+			}
+
+			// Write gene p-values
+			if (memberTable)
+			{
+				StringBuilder sb = new StringBuilder();
+				geneMutexPvals.keySet().stream().sorted(Comparator.comparing(geneMutexPvals::get)).forEach(gene ->
+					sb.append("\n").append(name).append("\t").append(gene).append("\t")
+						.append(geneMutexPvals.get(gene)).append("\t").append(geneCoocPvals.get(gene)));
+				memberWriter.add(setCollection[i], sb.toString());
+			}
+			else
+			{
+				writeGenePvals(dir + "/" + name + "-mutex.txt", geneMutexPvals);
+				writeGenePvals(dir + "/" + name + "-cooc.txt", geneCoocPvals);
+			}
+
+			// Calculate group p-values
+			pvals[0][i] = counts.mutex[i] / (double) counts.iterations[i];
+			pvals[1][i] = counts.cooc[i] / (double) counts.iterations[i];
+		}
+
+		return pvals;
+	}
+
+	private void writeGenePvals(String filename, Map<String, Double> genePvals) throws IOException
+	{
+		BufferedWriter writer = Files.newBufferedWriter(Paths.get(filename));
+		genePvals.keySet().stream().sorted(Comparator.comparing(genePvals::get))
+			.forEach(gene -> FileUtil.writeln(gene + "\t" + genePvals.get(gene), writer));
+		writer.close();
+	}
 
-	protected Map<Integer, Long> getSampleHitCounts(List<Matrix.Edge> edges, Set<String> genes)
+	/**
+	 * Gets the effective iterations of the gene set as an additional results column, if the run is adaptive or
+	 * screening.
+	 * @param set index of the gene set
+	 * @return column text including the leading tab, or empty string if the run is not adaptive or screening
+	 */
+	protected String getIterationsColumn(int set)
 	{
-		return edges.stream().filter(e -> genes.contains(e.gene)).map(e -> e.sampleIndex)
-			.collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
+		if (!hasIterationsColumn()) return "";
+		return "\t" + counts.iterations[set];
 	}
 
-	protected Map<String, Set<Integer>> getGeneToIndices(List<Matrix.Edge> edges, Set<String> genes)
+	protected Map<Integer, Long> getSampleHitCounts(Matrix matrix, Set<String> genes)
 	{
+		Matrix.Edges edges = matrix.getEdges();
+		Map<Integer, Long> map = new HashMap<>();
+		for (String gene : genes)
+		{
+			int g = matrix.getGeneIndex(gene);
+			if (g < 0) continue;
+			for (int e = edges.geneStart[g]; e < edges.geneStart[g + 1]; e++)
+			{
+				map.merge(edges.sampleIdx[e], 1L, Long::sum);
+			}
+		}
+		return map;
+	}
+
+	protected Map<String, Set<Integer>> getGeneToIndices(Matrix matrix, Set<String> genes)
+	{
+		Matrix.Edges edges = matrix.getEdges();
 		Map<String, Set<Integer>> map = new HashMap<>();
-		edges.stream().filter(e -> genes.contains(e.gene)).forEach(edge ->
+		for (String gene : genes)
 		{
-			if (!map.containsKey(edge.gene)) map.put(edge.gene, new HashSet<>());
-			map.get(edge.gene).add(edge.sampleIndex);
-		});
+			int g = matrix.getGeneIndex(gene);
+			if (g < 0 || edges.geneStart[g + 1] == edges.geneStart[g]) continue;
+
+			Set<Integer> inds = new HashSet<>();
+			for (int e = edges.geneStart[g]; e < edges.geneStart[g + 1]; e++)
+			{
+				inds.add(edges.sampleIdx[e]);
+			}
+			map.put(gene, inds);
+		}
 		return map;
 	}
 
@@ -212,24 +1324,46 @@ public class MutexTester
 		return geneToInds.get(gene).stream().map(sampleHitCounts::get).reduce((h1, h2) -> h1 + h2).get();
 	}
 
-	private void updateGeneMutexMeetMap(Map<String, Set<Integer>> geneToIndices, Map<Integer, Long> sampleHitCounts,
-		Map<String, Integer> meetMap, Map<String, Long> origGeneSampleHits)
+	/**
+	 * Shuffles its own copy of the alteration matrix and records the meets to the given counts.
+	 */
+	protected interface Worker extends Closeable
 	{
-		geneToIndices.keySet().forEach(gene ->
-		{
-			long hit = getSampleHitsForGeneInGroup(geneToIndices, gene, sampleHitCounts);
-			if (hit <= origGeneSampleHits.get(gene)) meetMap.put(gene, meetMap.get(gene) + 1);
-		});
-	}
+		/**
+		 * Performs one randomization and records the meets of the active gene sets.
+		 * @param counts counts to record to
+		 */
+		void iterate(MeetCounts counts) throws IOException;
 
-	private void updateGeneCoocMeetMap(Map<String, Set<Integer>> geneToIndices, Map<Integer, Long> sampleHitCounts,
-		Map<String, Integer> meetMap, Map<String, Long> origGeneSampleHits)
-	{
-		geneToIndices.keySet().forEach(gene ->
+		/**
+		 * Stops tracking the gene sets that are no longer active.
+		 * @param active whether each gene set is active
+		 */
+		void retain(boolean[] active);
+
+		/**
+		 * @return performance measurements of the worker, including the swap counts of its randomizers
+		 */
+		RunMetrics.WorkerMetrics getMetrics();
+
+		/**
+		 * Writes the state of the worker, which is its random number streams and its shuffled matrices.
+		 * @param out the output
+		 */
+		void writeState(DataOutput out) throws IOException;
+
+		/**
+		 * Restores the state written by writeState, on a new worker of the same run.
+		 * @param in the input
+		 */
+		void readState(DataInput in) throws IOException;
+
+		/**
+		 * Releases the resources of the worker after a failed run, without completing the files it writes.
+		 */
+		default void abort() throws IOException
 		{
-			long hit = getSampleHitsForGeneInGroup(geneToIndices, gene, sampleHitCounts);
-			if (hit >= origGeneSampleHits.get(gene)) meetMap.put(gene, meetMap.get(gene) + 1);
-		});
+			close();
+		}
 	}
-
 }
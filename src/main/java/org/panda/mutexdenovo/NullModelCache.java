@@ -0,0 +1,360 @@
+package org.panda.mutexdenovo;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A directory of shuffled matrices, so that later analyses of the same matrix can replay them instead of shuffling
+ * again. Files are keyed by the content hash of the matrix, by the randomizer type and its rounds in a shuffle, and
+ * by the stream index, which is the index of the worker that shuffles. A file is a gzip-compressed sequence of
+ * snapshots, one per shuffle, where a snapshot lists the sample indices of each gene in ascending order, delta coded as
+ * variable-length integers.
+ * <p>
+ * Replaying the same cache with the same number of threads gives every gene-set collection the same null matrices,
+ * which makes their results comparable.
+ */
+public class NullModelCache
+{
+	/**
+	 * Identifier at the beginning of the cache files.
+	 */
+	private static final int MAGIC = 0x4D444E4D;
+
+	private static final int VERSION = 3;
+
+	/**
+	 * Marker before each snapshot. The file ends with the END marker.
+	 */
+	private static final int SNAPSHOT = 1;
+	private static final int END = 0;
+
+	/**
+	 * The cache directory.
+	 */
+	private String dir;
+
+	/**
+	 * Content hashes of the original matrices.
+	 */
+	private Map<Matrix, String> hashes = new IdentityHashMap<>();
+
+	/**
+	 * Constructor with the cache directory.
+	 * @param dir directory of the cache files
+	 */
+	public NullModelCache(String dir)
+	{
+		this.dir = dir;
+	}
+
+	/**
+	 * Opens the recorded shuffles of the original matrix for the stream, if the cache has them. These are replayed,
+	 * and the shuffler is used only if the cache runs out. Since the replayed matrices are already shuffled, the copy
+	 * does not need to be shuffled before the replay.
+	 *
+	 * @param original the unshuffled matrix of the tester, that defines the cache key
+	 * @param copy the copy of the worker, which will be shuffled
+	 * @param stream index of the worker
+	 * @param type type of the randomizer
+	 * @param rounds swap rounds of a shuffle
+	 * @param shuffler the shuffler of the copy
+	 * @return the randomizer that replays, or null if the cache does not have the shuffles
+	 * @throws IOException if the cache cannot be read
+	 */
+	public MatrixRandomizer replay(Matrix original, Matrix copy, int stream, String type, int rounds,
+		MatrixRandomizer shuffler) throws IOException
+	{
+		Path file = getFile(original, stream, type, rounds);
+		if (!Files.exists(file)) return null;
+		return new Replayer(copy, getHash(original), type, rounds, file, shuffler);
+	}
+
+	/**
+	 * Wraps the shuffler of a worker to record its shuffles into the cache.
+	 *
+	 * @param original the unshuffled matrix of the tester, that defines the cache key
+	 * @param copy the copy of the worker, which will be shuffled
+	 * @param stream index of the worker
+	 * @param type type of the randomizer
+	 * @param rounds swap rounds of a shuffle
+	 * @param shuffler the shuffler of the copy
+	 * @return the randomizer that records
+	 * @throws IOException if the cache cannot be written
+	 */
+	public MatrixRandomizer record(Matrix original, Matrix copy, int stream, String type, int rounds,
+		MatrixRandomizer shuffler) throws IOException
+	{
+		Files.createDirectories(Paths.get(dir));
+		return new Recorder(copy, getHash(original), type, rounds, getFile(original, stream, type, rounds), shuffler);
+	}
+
+	private Path getFile(Matrix original, int stream, String type, int rounds)
+	{
+		return Paths.get(dir, getHash(original) + "-" + type + "-" + rounds + "-" + stream + ".nullmodel.gz");
+	}
+
+	private synchronized String getHash(Matrix original)
+	{
+		return hashes.computeIfAbsent(original, Matrix::getContentHash);
+	}
+
+	private static void writeHeader(DataOutputStream out, String hash, String type, int rounds, Matrix.Edges edges)
+		throws IOException
+	{
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(hash);
+		out.writeUTF(type);
+		out.writeInt(rounds);
+		out.writeInt(edges.geneStart.length - 1);
+		out.writeInt(edges.size());
+	}
+
+	private static void checkHeader(DataInputStream in, String hash, String type, int rounds, Matrix.Edges edges,
+		Path file) throws IOException
+	{
+		if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(hash) ||
+			!in.readUTF().equals(type) || in.readInt() != rounds || in.readInt() != edges.geneStart.length - 1 ||
+			in.readInt() != edges.size())
+		{
+			throw new RuntimeException("Null model cache file does not match the matrix: " + file);
+		}
+	}
+
+	static void writeVarInt(DataOutputStream out, int v) throws IOException
+	{
+		while ((v & ~0x7F) != 0)
+		{
+			out.writeByte((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.writeByte(v);
+	}
+
+	static int readVarInt(DataInputStream in) throws IOException
+	{
+		int v = 0;
+		for (int shift = 0; ; shift += 7)
+		{
+			int b = in.readUnsignedByte();
+			v |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return v;
+		}
+	}
+
+	/**
+	 * Shuffles with the given shuffler and writes each result to a temporary file, which replaces the cache file
+	 * when closed. The temporary file is deleted if the run is aborted. Hence, an interrupted run does not leave a
+	 * partial cache file.
+	 */
+	static class Recorder implements MatrixRandomizer
+	{
+		private MatrixRandomizer shuffler;
+		private Matrix.Edges edges;
+		private Path file;
+		private Path temp;
+		private DataOutputStream out;
+		private int[] buffer;
+
+		Recorder(Matrix matrix, String hash, String type, int rounds, Path file, MatrixRandomizer shuffler)
+			throws IOException
+		{
+			this.shuffler = shuffler;
+			this.edges = matrix.getEdges();
+			this.file = file;
+			this.temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+			this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+				Files.newOutputStream(temp), 1 << 16)));
+			this.buffer = new int[edges.size()];
+
+			writeHeader(out, hash, type, rounds, edges);
+		}
+
+		@Override
+		public void shuffle() throws IOException
+		{
+			shuffler.shuffle();
+
+			out.writeByte(SNAPSHOT);
+			System.arraycopy(edges.sampleIdx, 0, buffer, 0, buffer.length);
+			for (int g = 0; g < edges.geneStart.length - 1; g++)
+			{
+				int from = edges.geneStart[g];
+				int to = edges.geneStart[g + 1];
+				Arrays.sort(buffer, from, to);
+
+				int prev = 0;
+				for (int e = from; e < to; e++)
+				{
+					writeVarInt(out, buffer[e] - prev);
+					prev = buffer[e];
+				}
+			}
+		}
+
+		@Override
+		public void setTracker(CoverageTracker tracker)
+		{
+			shuffler.setTracker(tracker);
+		}
+
+		@Override
+		public long getSwapAttempts()
+		{
+			return shuffler.getSwapAttempts();
+		}
+
+		@Override
+		public long getSwapsAccepted()
+		{
+			return shuffler.getSwapsAccepted();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			out.writeByte(END);
+			out.close();
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		@Override
+		public void abort() throws IOException
+		{
+			try
+			{
+				out.close();
+			}
+			finally
+			{
+				Files.deleteIfExists(temp);
+			}
+		}
+	}
+
+	/**
+	 * Reads the shuffled matrices from a cache file and applies them to the matrix. Alterations that move are reported
+	 * to the tracker, so the tracker sees the same changes as it would see with a shuffler. When the file runs out,
+	 * shuffling continues with the shuffler, from the last replayed matrix.
+	 */
+	static class Replayer implements MatrixRandomizer
+	{
+		private MatrixRandomizer shuffler;
+		private Matrix matrix;
+		private Matrix.Edges edges;
+		private DataInputStream in;
+		private CoverageTracker tracker;
+		private int[] next;
+		private int[] leaving;
+		private int[] entering;
+
+		Replayer(Matrix matrix, String hash, String type, int rounds, Path file, MatrixRandomizer shuffler)
+			throws IOException
+		{
+			this.shuffler = shuffler;
+			this.matrix = matrix;
+			this.edges = matrix.getEdges();
+			this.in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+				Files.newInputStream(file), 1 << 16)));
+
+			checkHeader(in, hash, type, rounds, edges, file);
+
+			int maxDegree = 0;
+			for (int g = 0; g < edges.geneStart.length - 1; g++)
+			{
+				maxDegree = Math.max(maxDegree, edges.geneStart[g + 1] - edges.geneStart[g]);
+			}
+			next = new int[maxDegree];
+			leaving = new int[maxDegree];
+			entering = new int[maxDegree];
+		}
+
+		@Override
+		public void shuffle() throws IOException
+		{
+			if (in != null)
+			{
+				if (in.read() == SNAPSHOT)
+				{
+					for (int g = 0; g < edges.geneStart.length - 1; g++)
+					{
+						replayGene(g);
+					}
+					return;
+				}
+
+				System.out.println("\nNull model cache ran out, continuing by shuffling.");
+				in.close();
+				in = null;
+			}
+			shuffler.shuffle();
+		}
+
+		private void replayGene(int g) throws IOException
+		{
+			int from = edges.geneStart[g];
+			int degree = edges.geneStart[g + 1] - from;
+			if (degree == 0) return;
+
+			long[] row = matrix.getRow(g);
+
+			int prev = 0;
+			for (int k = 0; k < degree; k++)
+			{
+				next[k] = prev += readVarInt(in);
+			}
+
+			// Find the samples that the gene leaves and enters
+			int l = 0;
+			int n = 0;
+			for (int k = 0; k < degree; k++)
+			{
+				int s = edges.sampleIdx[from + k];
+				if (Arrays.binarySearch(next, 0, degree, s) < 0) leaving[l++] = s;
+				if (!Matrix.isSet(row, next[k])) entering[n++] = next[k];
+			}
+
+			for (int k = 0; k < l; k++)
+			{
+				Matrix.flip(row, leaving[k]);
+				Matrix.flip(row, entering[k]);
+				if (tracker != null) tracker.move(g, leaving[k], entering[k]);
+			}
+
+			System.arraycopy(next, 0, edges.sampleIdx, from, degree);
+		}
+
+		@Override
+		public void setTracker(CoverageTracker tracker)
+		{
+			this.tracker = tracker;
+			shuffler.setTracker(tracker);
+		}
+
+		@Override
+		public long getSwapAttempts()
+		{
+			return shuffler.getSwapAttempts();
+		}
+
+		@Override
+		public long getSwapsAccepted()
+		{
+			return shuffler.getSwapsAccepted();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			if (in != null) in.close();
+		}
+	}
+}
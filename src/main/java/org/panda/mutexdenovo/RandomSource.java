@@ -0,0 +1,75 @@
+package org.panda.mutexdenovo;
+
+/**
+ * Generator of random numbers for the shufflers. A source is not thread-safe. Each thread should use its own stream,
+ * obtained by splitting a root source that is generated from the seed of the run. Given the same seed and the same
+ * order of splits, the streams are reproduced exactly.
+ */
+public interface RandomSource
+{
+	String XOROSHIRO = "xoroshiro";
+	String SPLITMIX = "splitmix";
+
+	/**
+	 * @return next 64 random bits
+	 */
+	long nextLong();
+
+	/**
+	 * Generates an independent stream of random numbers. This source also advances, so consecutive splits give
+	 * different streams.
+	 * @return a new random source
+	 */
+	RandomSource split();
+
+	/**
+	 * Gets the internal state, which can be restored later to continue the same stream.
+	 * @return the state
+	 */
+	long[] getState();
+
+	/**
+	 * Restores a state that is taken from a source of the same type.
+	 * @param state the state
+	 */
+	void setState(long[] state);
+
+	/**
+	 * Generates a uniformly distributed integer with Lemire's multiply-and-shift method, which avoids division except
+	 * in the rare case of a rejection.
+	 * @param bound upper limit (exclusive), should be positive
+	 * @return random integer between 0 (inclusive) and bound (exclusive)
+	 */
+	default int nextInt(int bound)
+	{
+		long m = (nextLong() >>> 32) * bound;
+		long low = m & 0xFFFFFFFFL;
+		if (low < bound)
+		{
+			long threshold = (0x100000000L - bound) % bound;
+			while (low < threshold)
+			{
+				m = (nextLong() >>> 32) * bound;
+				low = m & 0xFFFFFFFFL;
+			}
+		}
+		return (int) (m >>> 32);
+	}
+
+	/**
+	 * Generates a random source of the given type.
+	 * @param type either xoroshiro or splitmix
+	 * @param seed the seed
+	 * @return the random source
+	 */
+	static RandomSource create(String type, long seed)
+	{
+		switch (type)
+		{
+			case XOROSHIRO: return new XoroshiroRandom(seed);
+			case SPLITMIX: return new SplitMixRandom(seed);
+			default: throw new RuntimeException("Unknown random generator: " + type + ". Possible values: " +
+				XOROSHIRO + ", " + SPLITMIX);
+		}
+	}
+}
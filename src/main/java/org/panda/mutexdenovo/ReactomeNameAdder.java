@@ -27,8 +27,7 @@ public class ReactomeNameAdder
 	private static String transformLine(String line)
 	{
 		String[] t = line.split("\t");
-		String id = ID_HEADER + t[0];
-		String name = ReactomePathway.get().getName(id);
+		String name = t[0].equals("ID") ? null : getName(t[0]);
 
 		if (name != null) t[0] += "\t" + name;
 		else if (t[0].equals("ID")) t[0] += "\tName";
@@ -36,4 +35,14 @@ public class ReactomeNameAdder
 
 		return ArrayUtil.merge("\t", t);
 	}
+
+	/**
+	 * Gets the name from the resource snapshot if it has the pathway, and from Reactome otherwise.
+	 */
+	private static String getName(String id)
+	{
+		ResourceSnapshot snapshot = ResourceSnapshot.get();
+		if (snapshot != null && snapshot.hasPathway(id)) return snapshot.getName(id);
+		return ReactomePathway.get().getName(ID_HEADER + id);
+	}
 }
@@ -0,0 +1,391 @@
+package org.panda.mutexdenovo;
+
+import org.panda.resource.ReactomePathway;
+import org.panda.resource.autismdatasets.SFARI;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A compact copy of the Reactome and SFARI resources, so that short runs do not parse the resources every time. The
+ * snapshot has the Reactome pathways cropped to a set of genes, which are the genes of the matrices that the snapshot
+ * is generated for, the names of those pathways, and the scores and classifications of the SFARI genes. The loaders
+ * use the snapshot when it is present and has all the genes that they need, and parse the resources otherwise.
+ * <p>
+ * The snapshot is a gzip-compressed binary file, where genes are written once and referred to by their index. It does
+ * not follow the updates of the resources, hence should be generated again after an update.
+ */
+public class ResourceSnapshot
+{
+	/**
+	 * Identifier at the beginning of the snapshot file.
+	 */
+	private static final int MAGIC = 0x4D444E52;
+
+	private static final int VERSION = 1;
+
+	/**
+	 * Location of the snapshot.
+	 */
+	public static final String FILE = System.getProperty("user.home") + "/.panda/mutex-de-novo-resources.bin";
+
+	/**
+	 * Highest score of the SFARI genes.
+	 */
+	private static final int SFARI_MAX_SCORE = 6;
+
+	/**
+	 * The loaded snapshot, which is read once per process.
+	 */
+	private static ResourceSnapshot instance;
+	private static boolean loaded;
+
+	/**
+	 * Time that the snapshot is generated.
+	 */
+	private long created;
+
+	/**
+	 * Genes that the pathways are cropped to.
+	 */
+	private Set<String> genes;
+
+	/**
+	 * Cropped members of each pathway, and their names, keyed by the pathway IDs without the URL prefix.
+	 */
+	private Map<String, Set<String>> pathways;
+	private Map<String, String> names;
+
+	/**
+	 * Whether the resource keeps the pathways that have no members after cropping.
+	 */
+	private boolean keepsEmptyPathways;
+
+	/**
+	 * Scores of the SFARI genes, where 0 means the gene has no score.
+	 */
+	private Map<String, Integer> sfariScores;
+
+	/**
+	 * SFARI classification of the SFARI genes and the genes of the snapshot.
+	 */
+	private Map<String, String> sfariClasses;
+
+	private ResourceSnapshot()
+	{
+	}
+
+	/**
+	 * Gets the snapshot if there is one. The snapshot is read at the first call.
+	 * @return the snapshot, or null if there is none or if it is of an unsupported version
+	 */
+	public static synchronized ResourceSnapshot get()
+	{
+		if (!loaded)
+		{
+			loaded = true;
+			if (Files.exists(Paths.get(FILE)))
+			{
+				try
+				{
+					instance = read(Paths.get(FILE));
+					System.out.println("Using the resource snapshot of " + new Date(instance.created) + ".");
+				}
+				catch (IOException e)
+				{
+					System.out.println("Cannot read the resource snapshot, parsing the resources instead. Run " +
+						"snapshot-resources to generate it again. " + e.getMessage());
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Generates the snapshot from the resources and writes it.
+	 * @param genes genes to crop the pathways to
+	 * @return the snapshot
+	 * @throws IOException if the snapshot cannot be written
+	 */
+	public static ResourceSnapshot generate(Set<String> genes) throws IOException
+	{
+		ResourceSnapshot snapshot = new ResourceSnapshot();
+		snapshot.created = System.currentTimeMillis();
+		snapshot.genes = new HashSet<>(genes);
+
+		snapshot.pathways = new HashMap<>();
+		snapshot.names = new HashMap<>();
+		ReactomePathway.get().getCroppedPathways(genes).forEach((id, set) ->
+		{
+			String shortID = id.substring(id.lastIndexOf("/") + 1);
+			snapshot.pathways.put(shortID, set);
+			String name = ReactomePathway.get().getName(ReactomeNameAdder.ID_HEADER + shortID);
+			if (name != null) snapshot.names.put(shortID, name);
+		});
+		snapshot.keepsEmptyPathways = snapshot.pathways.values().stream().anyMatch(Set::isEmpty);
+
+		snapshot.sfariScores = new HashMap<>();
+		for (String gene : SFARI.get().getAllGenes())
+		{
+			snapshot.sfariScores.put(gene, 0);
+		}
+		for (int score = SFARI_MAX_SCORE; score >= 1; score--)
+		{
+			for (String gene : SFARI.get().getGenesWithMaxScore(score))
+			{
+				snapshot.sfariScores.put(gene, score);
+			}
+		}
+
+		snapshot.sfariClasses = new HashMap<>();
+		Set<String> classified = new HashSet<>(genes);
+		classified.addAll(snapshot.sfariScores.keySet());
+		for (String gene : classified)
+		{
+			snapshot.sfariClasses.put(gene, SFARI.get().getClassification(gene));
+		}
+
+		snapshot.write(Paths.get(FILE));
+
+		synchronized (ResourceSnapshot.class)
+		{
+			instance = snapshot;
+			loaded = true;
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Writes to a temporary file first, which then replaces the snapshot, so that a failure does not leave a partial
+	 * snapshot.
+	 */
+	private void write(Path file) throws IOException
+	{
+		Path dir = file.toAbsolutePath().getParent();
+		Files.createDirectories(dir);
+		Path temp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+
+		// Genes of the pathways and of SFARI are written once, and referred to by their index
+		List<String> geneList = new ArrayList<>(genes);
+		pathways.values().forEach(geneList::addAll);
+		geneList.addAll(sfariClasses.keySet());
+		geneList = new ArrayList<>(new TreeSet<>(geneList));
+		Map<String, Integer> geneIndex = new HashMap<>();
+		for (int i = 0; i < geneList.size(); i++)
+		{
+			geneIndex.put(geneList.get(i), i);
+		}
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+			Files.newOutputStream(temp), 1 << 16))))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(created);
+
+			NullModelCache.writeVarInt(out, geneList.size());
+			for (String gene : geneList)
+			{
+				out.writeUTF(gene);
+			}
+
+			NullModelCache.writeVarInt(out, genes.size());
+			for (String gene : genes)
+			{
+				NullModelCache.writeVarInt(out, geneIndex.get(gene));
+			}
+
+			out.writeBoolean(keepsEmptyPathways);
+			NullModelCache.writeVarInt(out, pathways.size());
+			for (String id : new TreeSet<>(pathways.keySet()))
+			{
+				out.writeUTF(id);
+				writeOptional(out, names.get(id));
+				Set<String> members = pathways.get(id);
+				NullModelCache.writeVarInt(out, members.size());
+				for (String gene : members)
+				{
+					NullModelCache.writeVarInt(out, geneIndex.get(gene));
+				}
+			}
+
+			NullModelCache.writeVarInt(out, sfariClasses.size());
+			for (String gene : sfariClasses.keySet())
+			{
+				NullModelCache.writeVarInt(out, geneIndex.get(gene));
+				out.writeBoolean(sfariScores.containsKey(gene));
+				if (sfariScores.containsKey(gene)) out.writeByte(sfariScores.get(gene));
+				writeOptional(out, sfariClasses.get(gene));
+			}
+		}
+
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static ResourceSnapshot read(Path file) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+			Files.newInputStream(file), 1 << 16))))
+		{
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+			{
+				throw new IOException("Not a resource snapshot of a supported version: " + file);
+			}
+
+			ResourceSnapshot snapshot = new ResourceSnapshot();
+			snapshot.created = in.readLong();
+
+			String[] geneList = new String[NullModelCache.readVarInt(in)];
+			for (int i = 0; i < geneList.length; i++)
+			{
+				geneList[i] = in.readUTF();
+			}
+
+			int n = NullModelCache.readVarInt(in);
+			snapshot.genes = new HashSet<>();
+			for (int i = 0; i < n; i++)
+			{
+				snapshot.genes.add(geneList[NullModelCache.readVarInt(in)]);
+			}
+
+			snapshot.keepsEmptyPathways = in.readBoolean();
+			n = NullModelCache.readVarInt(in);
+			snapshot.pathways = new HashMap<>();
+			snapshot.names = new HashMap<>();
+			for (int i = 0; i < n; i++)
+			{
+				String id = in.readUTF();
+				String name = readOptional(in);
+				if (name != null) snapshot.names.put(id, name);
+
+				Set<String> members = new HashSet<>();
+				for (int j = NullModelCache.readVarInt(in); j > 0; j--)
+				{
+					members.add(geneList[NullModelCache.readVarInt(in)]);
+				}
+				snapshot.pathways.put(id, members);
+			}
+
+			n = NullModelCache.readVarInt(in);
+			snapshot.sfariScores = new HashMap<>();
+			snapshot.sfariClasses = new HashMap<>();
+			for (int i = 0; i < n; i++)
+			{
+				String gene = geneList[NullModelCache.readVarInt(in)];
+				if (in.readBoolean()) snapshot.sfariScores.put(gene, (int) in.readByte());
+				snapshot.sfariClasses.put(gene, readOptional(in));
+			}
+			return snapshot;
+		}
+	}
+
+	private static void writeOptional(DataOutputStream out, String s) throws IOException
+	{
+		out.writeBoolean(s != null);
+		if (s != null) out.writeUTF(s);
+	}
+
+	private static String readOptional(DataInputStream in) throws IOException
+	{
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * @return time that the snapshot is generated
+	 */
+	public long getCreated()
+	{
+		return created;
+	}
+
+	/**
+	 * @param genes some genes
+	 * @return true if the pathways of the snapshot are cropped to a superset of the given genes
+	 */
+	public boolean hasGenes(Collection<String> genes)
+	{
+		return this.genes.containsAll(genes);
+	}
+
+	/**
+	 * Crops the pathways to the given genes, which should be in the snapshot. Pathways without members after cropping
+	 * are kept only if the resource keeps them.
+	 * @param genes genes to crop to
+	 * @return members of each pathway, keyed by pathway IDs without the URL prefix
+	 */
+	public Map<String, Set<String>> getCroppedPathways(Set<String> genes)
+	{
+		Map<String, Set<String>> cropped = new HashMap<>();
+		pathways.forEach((id, members) ->
+		{
+			Set<String> set = new HashSet<>(members);
+			set.retainAll(genes);
+			if (keepsEmptyPathways || !set.isEmpty()) cropped.put(id, set);
+		});
+		return cropped;
+	}
+
+	/**
+	 * @param id pathway ID without the URL prefix
+	 * @return true if the snapshot has the pathway
+	 */
+	public boolean hasPathway(String id)
+	{
+		return pathways.containsKey(id);
+	}
+
+	/**
+	 * @param id pathway ID without the URL prefix
+	 * @return name of the pathway, or null if it has no name
+	 */
+	public String getName(String id)
+	{
+		return names.get(id);
+	}
+
+	/**
+	 * @param score highest score
+	 * @return SFARI genes whose score is between 1 and the given score
+	 */
+	public Set<String> getSFARIGenesWithMaxScore(int score)
+	{
+		Set<String> set = new HashSet<>();
+		sfariScores.forEach((gene, s) ->
+		{
+			if (s >= 1 && s <= score) set.add(gene);
+		});
+		return set;
+	}
+
+	/**
+	 * @return all SFARI genes
+	 */
+	public Set<String> getAllSFARIGenes()
+	{
+		return new HashSet<>(sfariScores.keySet());
+	}
+
+	/**
+	 * @param gene a gene
+	 * @return true if the snapshot has the SFARI classification of the gene
+	 */
+	public boolean hasSFARIClass(String gene)
+	{
+		return sfariClasses.containsKey(gene);
+	}
+
+	/**
+	 * @param gene a gene of the snapshot
+	 * @return SFARI classification of the gene
+	 */
+	public String getSFARIClass(String gene)
+	{
+		return sfariClasses.get(gene);
+	}
+}
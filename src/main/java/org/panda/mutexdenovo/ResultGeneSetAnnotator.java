@@ -55,7 +55,7 @@ public class ResultGeneSetAnnotator
 		writer.write("Rank\tGene\tMut#\tOv\tP-val\tSpecific overlaps");
 
 		geneList.forEach(gene -> FileUtil.lnwrite(ArrayUtil.getString("\t",
-			SFARI.get().getClassification(gene),
+			getSFARIClass(gene),
 			gene,
 			coverageMap.get(gene),
 			overlapMapCollective.get(gene),
@@ -68,4 +68,14 @@ public class ResultGeneSetAnnotator
 
 		writer.close();
 	}
+
+	/**
+	 * Gets the SFARI classification from the resource snapshot if it has the gene, and from SFARI otherwise.
+	 */
+	private static String getSFARIClass(String gene)
+	{
+		ResourceSnapshot snapshot = ResourceSnapshot.get();
+		if (snapshot != null && snapshot.hasSFARIClass(gene)) return snapshot.getSFARIClass(gene);
+		return SFARI.get().getClassification(gene);
+	}
 }
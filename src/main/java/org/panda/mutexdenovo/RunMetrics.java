@@ -0,0 +1,363 @@
+package org.panda.mutexdenovo;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Measures how the time of a run is split between its phases, and between shuffling and evaluation in the workers.
+ * Also counts the swap attempts and acceptances of the shufflers, and follows the heap usage and allocations. The
+ * measurements are written as a JSON report next to the results. The phases are also recorded as Flight Recorder
+ * events where the JVM has Flight Recorder.
+ */
+public class RunMetrics
+{
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	/**
+	 * Starts the Flight Recorder event of a phase, or null if the JVM does not have the Flight Recorder API, which
+	 * Java 8 has only from update 262, or if the events are not built in.
+	 */
+	private static final Function<String, Runnable> EVENTS = loadEvents();
+
+	/**
+	 * Wall time, CPU time and allocated bytes of each phase, in the order the phases first started.
+	 */
+	private Map<String, long[]> phases = new LinkedHashMap<>();
+
+	/**
+	 * Sum of the measurements of the workers.
+	 */
+	private WorkerMetrics workers = new WorkerMetrics();
+
+	private int threads;
+
+	/**
+	 * Number of gene set evaluations, which is the sum of the iterations of the gene sets.
+	 */
+	private long setEvaluations;
+
+	private long start = System.nanoTime();
+
+	/**
+	 * The thread that runs the phases. Allocations of the workers on this thread are already in the phases.
+	 */
+	private long thread = Thread.currentThread().getId();
+
+	/**
+	 * Number of swap rounds in a shuffle.
+	 */
+	private int swapRounds;
+
+	/**
+	 * Constructor that starts the measurement. Peak heap usage is reset, hence the peak is of this run.
+	 */
+	public RunMetrics()
+	{
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+		}
+	}
+
+	/**
+	 * Starts measuring a phase on the current thread. Time of the phases with the same name is summed.
+	 * @param name name of the phase
+	 * @return the phase to end
+	 */
+	public Phase start(String name)
+	{
+		return new Phase(name);
+	}
+
+	/**
+	 * Adds the measurements of a worker.
+	 * @param worker measurements of the worker
+	 */
+	public synchronized void addWorker(WorkerMetrics worker)
+	{
+		threads++;
+		workers.add(worker);
+	}
+
+	/**
+	 * Records the number of gene set evaluations from the meet counts of the run.
+	 * @param counts meet counts of the run
+	 */
+	public void setSetEvaluations(MeetCounts counts)
+	{
+		setEvaluations = 0;
+		for (int n : counts.iterations)
+		{
+			setEvaluations += n;
+		}
+	}
+
+	public void setSwapRounds(int swapRounds)
+	{
+		this.swapRounds = swapRounds;
+	}
+
+	/**
+	 * Writes the report.
+	 * @param filename the report file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void write(String filename) throws IOException
+	{
+		long wall = System.nanoTime() - start;
+		long allocated = workers.getAllocated() - workers.allocated.getOrDefault(thread, 0L);
+
+		StringBuilder sb = new StringBuilder("{\n");
+		append(sb, "wallSeconds", wall / 1e9);
+		append(sb, "threads", threads);
+
+		sb.append("  \"phases\": {");
+		String sep = "\n";
+		for (String name : phases.keySet())
+		{
+			long[] p = phases.get(name);
+			allocated += p[2];
+			sb.append(sep).append(String.format(Locale.ROOT,
+				"    \"%s\": {\"wallMs\": %.3f, \"cpuMs\": %.3f, \"allocatedMB\": %.3f}",
+				name, p[0] / 1e6, p[1] / 1e6, p[2] / 1e6));
+			sep = ",\n";
+		}
+		sb.append("\n  },\n");
+
+		append(sb, "iterations", workers.iterations);
+		long[] permutation = phases.get(MutexTester.PERMUTATION_PHASE);
+		append(sb, "iterationsPerSecond", permutation == null || permutation[0] == 0 ? 0 :
+			workers.iterations / (permutation[0] / 1e9));
+		append(sb, "shuffleThreadMs", workers.shuffleWall / 1e6);
+		append(sb, "shuffleCpuMs", workers.shuffleCpu / 1e6);
+		append(sb, "evaluationThreadMs", workers.evaluationWall / 1e6);
+		append(sb, "evaluationCpuMs", workers.evaluationCpu / 1e6);
+		append(sb, "setEvaluations", setEvaluations);
+		append(sb, "nsPerSetEvaluation", setEvaluations == 0 ? 0 : workers.evaluationWall / (double) setEvaluations);
+		append(sb, "swapRounds", swapRounds);
+		append(sb, "swapAttempts", workers.swapAttempts);
+		append(sb, "swapsAccepted", workers.swapsAccepted);
+		sb.append(String.format(Locale.ROOT, "  \"swapAcceptance\": %.6f,\n", workers.swapAttempts == 0 ? 0 :
+			workers.swapsAccepted / (double) workers.swapAttempts));
+		append(sb, "peakHeapMB", getPeakHeap() / 1e6);
+		append(sb, "allocatedMB", allocated / 1e6);
+		sb.append(String.format(Locale.ROOT, "  \"allocationRateMBPerSecond\": %.3f\n}\n",
+			allocated / 1e6 / (wall / 1e9)));
+
+		try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(filename)))
+		{
+			writer.write(sb.toString());
+		}
+	}
+
+	private static void append(StringBuilder sb, String key, long value)
+	{
+		sb.append("  \"").append(key).append("\": ").append(value).append(",\n");
+	}
+
+	private static void append(StringBuilder sb, String key, double value)
+	{
+		sb.append(String.format(Locale.ROOT, "  \"%s\": %.3f,\n", key, value));
+	}
+
+	private static long getPeakHeap()
+	{
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+
+	/**
+	 * Loads the Flight Recorder events, which are compiled only in the jfr profile, since they need the jdk.jfr module.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Function<String, Runnable> loadEvents()
+	{
+		try
+		{
+			Class.forName("jdk.jfr.Event");
+			return (Function<String, Runnable>) Class.forName(RunMetrics.class.getPackage().getName() +
+				".PhaseEvents").newInstance();
+		}
+		catch (ReflectiveOperationException | LinkageError e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * @return CPU time of the current thread in nanoseconds, or 0 if not supported
+	 */
+	private static long cpuTime()
+	{
+		return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+	}
+
+	/**
+	 * @return bytes allocated by the current thread so far, or 0 if not supported
+	 */
+	private static long allocatedBytes()
+	{
+		if (THREADS instanceof com.sun.management.ThreadMXBean)
+		{
+			return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(
+				Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	/**
+	 * Measurement of a phase on the thread that started it.
+	 */
+	public class Phase
+	{
+		private String name;
+		private long wall = System.nanoTime();
+		private long cpu = cpuTime();
+		private long allocated = allocatedBytes();
+
+		/**
+		 * Ends the Flight Recorder event of the phase, if there is one.
+		 */
+		private Runnable event;
+
+		private Phase(String name)
+		{
+			this.name = name;
+			phases.putIfAbsent(name, new long[3]);
+			if (EVENTS != null) event = EVENTS.apply(name);
+		}
+
+		/**
+		 * Ends the phase and adds its measurements.
+		 */
+		public void end()
+		{
+			long[] p = phases.get(name);
+			p[0] += System.nanoTime() - wall;
+			p[1] += cpuTime() - cpu;
+			p[2] += allocatedBytes() - allocated;
+			if (event != null) event.run();
+		}
+	}
+
+	/**
+	 * Measurements of a worker, which is used by one thread at a time. Each iteration is measured in two laps, the
+	 * shuffling and the evaluation.
+	 */
+	public static class WorkerMetrics
+	{
+		long iterations;
+		long shuffleWall;
+		long shuffleCpu;
+		long evaluationWall;
+		long evaluationCpu;
+		long swapAttempts;
+		long swapsAccepted;
+
+		/**
+		 * Allocated bytes, keyed by the ID of the thread that the iterations ran on.
+		 */
+		Map<Long, Long> allocated = new HashMap<>();
+
+		private long lapWall;
+		private long lapCpu;
+		private long lapAllocated;
+
+		/**
+		 * Starts an iteration.
+		 */
+		public void startIteration()
+		{
+			lapWall = System.nanoTime();
+			lapCpu = cpuTime();
+			lapAllocated = allocatedBytes();
+		}
+
+		/**
+		 * Ends the shuffling of the iteration, and starts its evaluation.
+		 */
+		public void endShuffle()
+		{
+			long wall = System.nanoTime();
+			long cpu = cpuTime();
+			shuffleWall += wall - lapWall;
+			shuffleCpu += cpu - lapCpu;
+			lapWall = wall;
+			lapCpu = cpu;
+		}
+
+		/**
+		 * Shuffles with the randomizer on a helper thread of the worker, and adds the CPU time to the shuffling of the
+		 * iteration. The worker should wait for this before ending the shuffling.
+		 * @param randomizer the randomizer
+		 * @throws IOException if the randomizer fails
+		 */
+		public void shuffleOnHelper(MatrixRandomizer randomizer) throws IOException
+		{
+			long cpu = cpuTime();
+			randomizer.shuffle();
+			shuffleCpu += cpuTime() - cpu;
+		}
+
+		/**
+		 * Ends the evaluation of the iteration.
+		 */
+		public void endIteration()
+		{
+			evaluationWall += System.nanoTime() - lapWall;
+			evaluationCpu += cpuTime() - lapCpu;
+			allocated.merge(Thread.currentThread().getId(), allocatedBytes() - lapAllocated, Long::sum);
+			iterations++;
+		}
+
+		/**
+		 * Sets the swap counts to the total of the randomizers of the worker.
+		 * @param randomizers the randomizers
+		 */
+		public void setSwaps(MatrixRandomizer... randomizers)
+		{
+			swapAttempts = 0;
+			swapsAccepted = 0;
+			for (MatrixRandomizer randomizer : randomizers)
+			{
+				swapAttempts += randomizer.getSwapAttempts();
+				swapsAccepted += randomizer.getSwapsAccepted();
+			}
+		}
+
+		/**
+		 * @return allocated bytes on all threads
+		 */
+		long getAllocated()
+		{
+			return allocated.values().stream().mapToLong(Long::longValue).sum();
+		}
+
+		void add(WorkerMetrics other)
+		{
+			iterations += other.iterations;
+			shuffleWall += other.shuffleWall;
+			shuffleCpu += other.shuffleCpu;
+			evaluationWall += other.evaluationWall;
+			evaluationCpu += other.evaluationCpu;
+			other.allocated.forEach((thread, bytes) -> allocated.merge(thread, bytes, Long::sum));
+			swapAttempts += other.swapAttempts;
+			swapsAccepted += other.swapsAccepted;
+		}
+	}
+}
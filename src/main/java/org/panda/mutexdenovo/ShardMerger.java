@@ -0,0 +1,174 @@
+package org.panda.mutexdenovo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Sums the meet counts of the shards of a run, and writes the results as the run would write if it was not sharded.
+ * The shards should be all the shards of the same run, with the same seed, matrix, iterations and gene sets.
+ */
+public class ShardMerger
+{
+	/**
+	 * Merges the shards. If the shards tested several gene set collections, the meet counts of each collection are in
+	 * a subdirectory, and each collection is merged into the subdirectory with the same name.
+	 * @param outDir the output directory
+	 * @param shardDirs output directories of the shards
+	 * @param memberOutput how the p-values of members are written, as in MutexTester.setMemberOutput
+	 * @throws IOException if cannot read or write
+	 */
+	public static void merge(String outDir, List<String> shardDirs, String memberOutput) throws IOException
+	{
+		if (Files.exists(Paths.get(shardDirs.get(0), MutexTester.MEET_COUNTS_FILE)))
+		{
+			mergeCollection(outDir, shardDirs, memberOutput);
+			return;
+		}
+
+		File[] subDirs = new File(shardDirs.get(0)).listFiles(f ->
+			f.isDirectory() && new File(f, MutexTester.MEET_COUNTS_FILE).exists());
+
+		if (subDirs == null || subDirs.length == 0)
+		{
+			throw new RuntimeException("No meet counts found in the shard directory: " + shardDirs.get(0));
+		}
+
+		for (File subDir : subDirs)
+		{
+			String name = subDir.getName();
+			mergeCollection(outDir + File.separator + name,
+				shardDirs.stream().map(dir -> dir + File.separator + name).collect(Collectors.toList()), memberOutput);
+		}
+	}
+
+	private static void mergeCollection(String outDir, List<String> shardDirs, String memberOutput)
+		throws IOException
+	{
+		String header = null;
+		Boolean adaptive = null;
+		Map<String, String> run = new HashMap<>();
+		Set<Integer> indices = new HashSet<>();
+		Map<String, Set<String>> geneSets = null;
+		Map<String, String> statistics = new HashMap<>();
+		Map<String, int[]> setCounts = new HashMap<>();
+		Map<String, Map<String, int[]>> geneCounts = new HashMap<>();
+
+		for (String dir : shardDirs)
+		{
+			String file = dir + File.separator + MutexTester.MEET_COUNTS_FILE;
+			if (!Files.exists(Paths.get(file))) throw new RuntimeException("Shard meet counts not found: " + file);
+
+			Map<String, Set<String>> shardSets = new HashMap<>();
+			String set = null;
+
+			for (String line : Files.readAllLines(Paths.get(file)))
+			{
+				String[] t = line.split("\t", -1);
+				switch (t[0])
+				{
+					case "Header":
+						String h = line.substring(t[0].length() + 1);
+						if (header != null && !header.equals(h)) throw new RuntimeException("Shards of different " +
+							"tests cannot be merged: " + file);
+						header = h;
+						break;
+					case "Shard":
+						checkSameRun(run, "shard count", t[2], file);
+						if (!indices.add(Integer.parseInt(t[1])))
+						{
+							throw new RuntimeException("Shard " + t[1] + " is given more than once: " + file);
+						}
+						break;
+					case "Seed":
+						checkSameRun(run, "seed", t[1], file);
+						break;
+					case "Matrix":
+						checkSameRun(run, "matrix", t[1], file);
+						break;
+					case "Iterations":
+						checkSameRun(run, "iterations", t[1], file);
+						break;
+					case "Adaptive":
+						adaptive = (adaptive != null && adaptive) || Boolean.valueOf(t[1]);
+						break;
+					case "Set":
+						set = t[1];
+						shardSets.put(set, new HashSet<>());
+						statistics.putIfAbsent(set, String.join("\t", Arrays.copyOfRange(t, 5, t.length)));
+						add(setCounts.computeIfAbsent(set, k -> new int[3]), t, 2, 3);
+						break;
+					case "Gene":
+						shardSets.get(set).add(t[1]);
+						add(geneCounts.computeIfAbsent(set, k -> new HashMap<>())
+							.computeIfAbsent(t[1], k -> new int[2]), t, 2, 2);
+						break;
+					default:
+						throw new RuntimeException("Unexpected line in " + file + ": " + line);
+				}
+			}
+
+			if (!run.containsKey("shard count"))
+			{
+				throw new RuntimeException("Not the meet counts of a shard: " + file);
+			}
+
+			if (geneSets == null) geneSets = shardSets;
+			else if (!shardSets.keySet().equals(geneSets.keySet()))
+			{
+				throw new RuntimeException("Shards have different gene sets: " + file);
+			}
+			else
+			{
+				for (String name : geneSets.keySet())
+				{
+					if (!shardSets.get(name).equals(geneSets.get(name)))
+					{
+						throw new RuntimeException("Shards have different members of gene set " + name + ": " + file);
+					}
+				}
+			}
+		}
+
+		int count = Integer.parseInt(run.get("shard count"));
+		if (indices.size() != count || !IntStream.range(0, count).allMatch(indices::contains))
+		{
+			throw new RuntimeException("The shards are not all of the " + count + " shards of the run. Given shards " +
+				"are " + new TreeSet<>(indices) + ".");
+		}
+
+		System.out.println("Merged " + shardDirs.size() + " shards into " + outDir);
+
+		MutexTester tester = new MutexTester(null, geneSets, outDir, 0);
+		tester.setMemberOutput(memberOutput);
+		tester.writeMergedResults(header, statistics, setCounts, geneCounts, adaptive);
+	}
+
+	/**
+	 * Checks that a setting of the run is the same as in the previous shards.
+	 */
+	private static void checkSameRun(Map<String, String> run, String setting, String value, String file)
+	{
+		String previous = run.putIfAbsent(setting, value);
+		if (previous != null && !previous.equals(value))
+		{
+			throw new RuntimeException("Shards of different runs cannot be merged. The " + setting + " is " + value +
+				" in " + file + ", but " + previous + " in the previous shards.");
+		}
+	}
+
+	/**
+	 * Adds the counts in the tokens, starting from the given position, to the sums.
+	 */
+	private static void add(int[] sums, String[] t, int from, int length)
+	{
+		for (int k = 0; k < length; k++)
+		{
+			sums[k] += Integer.parseInt(t[from + k]);
+		}
+	}
+}
@@ -1,19 +1,22 @@
 package org.panda.mutexdenovo;
 
-import java.util.List;
-import java.util.Map;
-import java.util.Random;
-
 /**
  * Implements the degree-preserving randomization of graphs from
  * <a href="https://arxiv.org/abs/cond-mat/0312028">https://arxiv.org/abs/cond-mat/0312028</a>.
  */
-public class Shuffler
+public class Shuffler implements MatrixRandomizer
 {
 	/**
-	 * Magic constant.
+	 * Default number of swap rounds in a shuffle, where a round is as many swap attempts as the edges. This is the
+	 * constant Q of the paper, and is safe for all matrices but more than most need. MixingCalibrator finds a smaller
+	 * number for a matrix.
+	 */
+	public static final int DEFAULT_ROUNDS = 100;
+
+	/**
+	 * Number of swap rounds in a shuffle.
 	 */
-	private static final int Q = 100;
+	private int rounds;
 
 	/**
 	 * The alteration matrix.
@@ -23,60 +26,121 @@ public class Shuffler
 	/**
 	 * Random number generator.
 	 */
-	private Random r;
+	private RandomSource r;
+
+	/**
+	 * Optional tracker of gene set coverages that is notified of every accepted swap.
+	 */
+	private CoverageTracker tracker;
+
+	/**
+	 * Number of swaps attempted and accepted so far.
+	 */
+	private long attempts;
+	private long accepted;
 
 	/**
 	 * Constructor with the matrix.
 	 * @param matrix the alteration matrix
 	 */
 	public Shuffler(Matrix matrix)
+	{
+		this(matrix, new XoroshiroRandom(System.nanoTime()));
+	}
+
+	/**
+	 * Constructor with the matrix and the random number generator.
+	 * @param matrix the alteration matrix
+	 * @param r random number generator, to be used only by this shuffler
+	 */
+	public Shuffler(Matrix matrix, RandomSource r)
+	{
+		this(matrix, r, DEFAULT_ROUNDS);
+	}
+
+	/**
+	 * Constructor with the matrix, the random number generator and the number of swap rounds in a shuffle.
+	 * @param matrix the alteration matrix
+	 * @param r random number generator, to be used only by this shuffler
+	 * @param rounds number of swap rounds in a shuffle
+	 */
+	public Shuffler(Matrix matrix, RandomSource r, int rounds)
 	{
 		this.matrix = matrix;
-		r = new Random();
+		this.r = r;
+		this.rounds = rounds;
+	}
+
+	@Override
+	public void setTracker(CoverageTracker tracker)
+	{
+		this.tracker = tracker;
+	}
+
+	@Override
+	public long getSwapAttempts()
+	{
+		return attempts;
+	}
+
+	@Override
+	public long getSwapsAccepted()
+	{
+		return accepted;
 	}
 
 	/**
 	 * One round of randomization of the matrix.
 	 */
+	@Override
 	public void shuffle()
 	{
 		// Get the matrix as a graph
-		List<Matrix.Edge> edges = matrix.getEdges();
+		Matrix.Edges edges = matrix.getEdges();
+		int[] geneIdx = edges.geneIdx;
+		int[] sampleIdx = edges.sampleIdx;
 
 		// Find edge size
 		int E = edges.size();
 
-		// Get matrix rows for later access
-		Map<String, boolean[]> rows = matrix.getRows();
+		attempts += (long) rounds * E;
 
-		// Do Q times
-		for (int i = 0; i < Q; i++)
+		// Do the rounds
+		for (int i = 0; i < rounds; i++)
 		{
 			// Do E times
 			for (int j = 0; j < E; j++)
 			{
 				// Select two random edges
-				Matrix.Edge edge1 = edges.get(r.nextInt(E));
-				Matrix.Edge edge2 = edges.get(r.nextInt(E));
+				int e1 = r.nextInt(E);
+				int e2 = r.nextInt(E);
 
-				if (edge1 != edge2)
+				if (e1 != e2)
 				{
-					boolean[] b1 = rows.get(edge1.gene);
-					boolean[] b2 = rows.get(edge2.gene);
+					int s1 = sampleIdx[e1];
+					int s2 = sampleIdx[e2];
+					long[] b1 = matrix.getRow(geneIdx[e1]);
+					long[] b2 = matrix.getRow(geneIdx[e2]);
 
 					// If swapping the targets of those edges does not generate redundant edges, swap them.
-					if (!b1[edge2.sampleIndex] && !b2[edge1.sampleIndex])
+					if (!Matrix.isSet(b1, s2) && !Matrix.isSet(b2, s1))
 					{
 						// Swap in the matrix representation
-						b1[edge1.sampleIndex] = !b1[edge1.sampleIndex];
-						b1[edge2.sampleIndex] = !b1[edge2.sampleIndex];
-						b2[edge1.sampleIndex] = !b2[edge1.sampleIndex];
-						b2[edge2.sampleIndex] = !b2[edge2.sampleIndex];
+						Matrix.flip(b1, s1);
+						Matrix.flip(b1, s2);
+						Matrix.flip(b2, s1);
+						Matrix.flip(b2, s2);
 
 						// Swap in the graph representation
-						int temp = edge1.sampleIndex;
-						edge1.sampleIndex = edge2.sampleIndex;
-						edge2.sampleIndex = temp;
+						sampleIdx[e1] = s2;
+						sampleIdx[e2] = s1;
+						accepted++;
+
+						if (tracker != null)
+						{
+							tracker.move(geneIdx[e1], s1, s2);
+							tracker.move(geneIdx[e2], s2, s1);
+						}
 					}
 				}
 			}
@@ -2,14 +2,12 @@ package org.panda.mutexdenovo;
 
 import org.panda.utility.ArrayUtil;
 import org.panda.utility.FileUtil;
-import org.panda.utility.statistics.FDR;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -18,55 +16,102 @@ import java.util.stream.Collectors;
  */
 public class SignificanceExplorer
 {
+	/**
+	 * Finds the number of significant gene sets at each FDR, when only the gene sets with at least the given number of
+	 * hits are tested, for each hit threshold in the results. Gene sets are added in the descending order of their
+	 * hits, and the Benjamini-Hochberg cut of each FDR is found in one pass over the added p-values, which are kept in
+	 * the ascending order. Hence, there is no sorting per threshold or per FDR.
+	 */
 	public static void explore(String inFile, String outFile, PatternType pType, double[] fdrs) throws IOException
 	{
-		// Read p-values
-		Map<String, Double> pvals = Files.lines(Paths.get(inFile))
-			.skip(1).map(l -> l.split("\t"))
-			.collect(Collectors.toMap(t -> t[0], t -> Double.valueOf(t[pType == PatternType.MUTEX ? 4 : 5])));
-
-		// Read number mutations (coverage + overlap) on each gene set
-		Map<String, Integer> hits = Files.lines(Paths.get(inFile))
-			.skip(1).map(l -> l.split("\t"))
-			.collect(Collectors.toMap(t -> t[0], t -> Integer.valueOf(t[2]) + Integer.valueOf(t[3])));
-
-		// Find unique hit thresholds, ordered descending
-		List<Integer> orderedUniqueHits = hits.values().stream().distinct().sorted(Comparator.reverseOrder())
+		// Read p-values and number of mutations (coverage + overlap) on each gene set
+		List<String[]> rows = Files.lines(Paths.get(inFile)).skip(1).map(l -> l.split("\t"))
 			.collect(Collectors.toList());
+		int n = rows.size();
+		double[] pvals = rows.stream().mapToDouble(t -> Double.valueOf(t[pType == PatternType.MUTEX ? 4 : 5])).toArray();
+		int[] hits = rows.stream().mapToInt(t -> Integer.valueOf(t[2]) + Integer.valueOf(t[3])).toArray();
+
+		// Order of gene sets by p-values, and the position of each gene set in that order
+		Integer[] byP = new Integer[n];
+		for (int i = 0; i < n; i++)
+		{
+			byP[i] = i;
+		}
+		Arrays.sort(byP, Comparator.comparingDouble(i -> pvals[i]));
+		double[] sortedP = new double[n];
+		int[] position = new int[n];
+		for (int k = 0; k < n; k++)
+		{
+			sortedP[k] = pvals[byP[k]];
+			position[byP[k]] = k;
+		}
+
+		// Gene sets in the descending order of hits
+		Integer[] byHits = new Integer[n];
+		for (int i = 0; i < n; i++)
+		{
+			byHits[i] = i;
+		}
+		Arrays.sort(byHits, Comparator.comparingInt(i -> -hits[i]));
 
 		// Start writing the output
 		BufferedWriter writer = Files.newBufferedWriter(Paths.get(outFile));
 		writer.write("Tested size\tHit thr");
 		Arrays.stream(fdrs).forEach(fdr -> FileUtil.tab_write("FDR=" + fdr, writer));
 
-		Map<Double, Integer> maximums = new HashMap<>();
-		Arrays.stream(fdrs).forEach(fdr -> maximums.put(fdr, 0));
+		// Only the p-values up to the largest FDR can be selected, hence the pass starts from there
+		double maxFDR = Arrays.stream(fdrs).max().orElse(0);
+		int limit = 0;
+		while (limit < n && sortedP[limit] <= maxFDR) limit++;
+		int testedBelowLimit = 0;
+
+		int[] maximums = new int[fdrs.length];
+		boolean[] tested = new boolean[n];
+		int[] selected = new int[fdrs.length];
 
 		// For each hit threshold, find the number of significant results for each FDR threshold
-		for (int thr : orderedUniqueHits)
+		for (int h = 0; h < n; )
 		{
-			// Get the subset using the threshold
-			Map<String, Double> filteredP = pvals.keySet().stream().filter(name -> hits.get(name) >= thr)
-				.collect(Collectors.toMap(Function.identity(), pvals::get));
+			int thr = hits[byHits[h]];
+			while (h < n && hits[byHits[h]] == thr)
+			{
+				int k = position[byHits[h++]];
+				tested[k] = true;
+				if (k < limit) testedBelowLimit++;
+			}
+			int m = h;
 
-			writer.write("\n" + filteredP.size() + "\t" + thr);
+			writer.write("\n" + m + "\t" + thr);
 
-			// Find the result size
-			for (double fdr : fdrs)
+			// The cut of an FDR is the largest rank whose p-value is at most FDR * rank / m
+			Arrays.fill(selected, -1);
+			int unresolved = fdrs.length;
+			for (int k = limit - 1, rank = testedBelowLimit; k >= 0 && unresolved > 0; k--)
 			{
-				List<String> select = FDR.select(filteredP, null, fdr);
-				writer.write("\t" + select.size());
+				if (!tested[k]) continue;
 
-				if (maximums.get(fdr) < select.size())
+				for (int f = 0; f < fdrs.length; f++)
 				{
-					maximums.put(fdr, select.size());
+					if (selected[f] < 0 && sortedP[k] <= fdrs[f] * rank / m)
+					{
+						selected[f] = rank;
+						unresolved--;
+					}
 				}
+				rank--;
+			}
+
+			for (int f = 0; f < fdrs.length; f++)
+			{
+				selected[f] = Math.max(selected[f], 0);
+				writer.write("\t" + selected[f]);
+				maximums[f] = Math.max(maximums[f], selected[f]);
 			}
 		}
 
 		// Write maximum result sizes for each FDR
 		writer.write("\n\nmaximums\t");
-		Arrays.stream(fdrs).forEach(fdr -> FileUtil.tab_write(maximums.get(fdr), writer));
+		Arrays.stream(maximums).forEach(max -> FileUtil.tab_write(max, writer));
 
 		writer.close();
 	}
@@ -0,0 +1,85 @@
+package org.panda.mutexdenovo;
+
+/**
+ * The SplitMix64 generator, which is the algorithm of java.util.SplittableRandom. It is reimplemented here so that it
+ * can be used through the RandomSource interface.
+ */
+public class SplitMixRandom implements RandomSource
+{
+	/**
+	 * The default gamma, the odd integer closest to 2^64 divided by the golden ratio.
+	 */
+	static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	/**
+	 * Current seed, advanced by gamma at each step.
+	 */
+	private long seed;
+
+	/**
+	 * The step value, which is odd.
+	 */
+	private long gamma;
+
+	/**
+	 * Constructor with seed.
+	 * @param seed the seed
+	 */
+	public SplitMixRandom(long seed)
+	{
+		this(seed, GOLDEN_GAMMA);
+	}
+
+	private SplitMixRandom(long seed, long gamma)
+	{
+		this.seed = seed;
+		this.gamma = gamma;
+	}
+
+	@Override
+	public long nextLong()
+	{
+		return mix64(seed += gamma);
+	}
+
+	@Override
+	public RandomSource split()
+	{
+		return new SplitMixRandom(nextLong(), mixGamma(seed += gamma));
+	}
+
+	@Override
+	public long[] getState()
+	{
+		return new long[]{seed, gamma};
+	}
+
+	@Override
+	public void setState(long[] state)
+	{
+		seed = state[0];
+		gamma = state[1];
+	}
+
+	/**
+	 * Variant 13 of the MurmurHash3 finalizer, by David Stafford.
+	 */
+	static long mix64(long z)
+	{
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Generates an odd gamma with enough bit transitions, as SplittableRandom does.
+	 */
+	private static long mixGamma(long z)
+	{
+		z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+		z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		z = (z ^ (z >>> 33)) | 1L;
+		int n = Long.bitCount(z ^ (z >>> 1));
+		return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+	}
+}
@@ -0,0 +1,96 @@
+package org.panda.mutexdenovo;
+
+/**
+ * The xoroshiro128++ generator of Blackman and Vigna, <a href="https://prng.di.unimi.it/">https://prng.di.unimi.it/</a>.
+ * Splitting uses the jump function, which advances the generator by 2^64 steps, hence the streams do not overlap.
+ */
+public class XoroshiroRandom implements RandomSource
+{
+	/**
+	 * Polynomial of the jump function, equivalent to 2^64 calls to nextLong.
+	 */
+	private static final long[] JUMP = {0x2bd7a6a6e99c2ddcL, 0x0992ccaf6a6fca05L};
+
+	/**
+	 * State of the generator.
+	 */
+	private long s0, s1;
+
+	/**
+	 * Constructor with seed. The state is initialized from the seed with SplitMix64, as recommended by the authors.
+	 * @param seed the seed
+	 */
+	public XoroshiroRandom(long seed)
+	{
+		s0 = SplitMixRandom.mix64(seed += SplitMixRandom.GOLDEN_GAMMA);
+		s1 = SplitMixRandom.mix64(seed + SplitMixRandom.GOLDEN_GAMMA);
+	}
+
+	private XoroshiroRandom(long s0, long s1)
+	{
+		this.s0 = s0;
+		this.s1 = s1;
+	}
+
+	@Override
+	public long nextLong()
+	{
+		long a = s0;
+		long b = s1;
+		long result = Long.rotateLeft(a + b, 17) + a;
+
+		b ^= a;
+		s0 = Long.rotateLeft(a, 49) ^ b ^ (b << 21);
+		s1 = Long.rotateLeft(b, 28);
+
+		return result;
+	}
+
+	@Override
+	public long[] getState()
+	{
+		return new long[]{s0, s1};
+	}
+
+	@Override
+	public void setState(long[] state)
+	{
+		s0 = state[0];
+		s1 = state[1];
+	}
+
+	/**
+	 * Returns a generator at the current state, and jumps this generator 2^64 steps ahead.
+	 * @return the new stream
+	 */
+	@Override
+	public RandomSource split()
+	{
+		XoroshiroRandom stream = new XoroshiroRandom(s0, s1);
+		jump();
+		return stream;
+	}
+
+	/**
+	 * Advances the generator by 2^64 steps.
+	 */
+	public void jump()
+	{
+		long j0 = 0;
+		long j1 = 0;
+		for (long poly : JUMP)
+		{
+			for (int b = 0; b < 64; b++)
+			{
+				if ((poly & (1L << b)) != 0)
+				{
+					j0 ^= s0;
+					j1 ^= s1;
+				}
+				nextLong();
+			}
+		}
+		s0 = j0;
+		s1 = j1;
+	}
+}
@@ -0,0 +1,83 @@
+package org.panda.mutexdenovo;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.util.function.Function;
+
+/**
+ * Flight Recorder events of the phases of a run, so that a recording shows the phases on the timeline of the JVM,
+ * next to the garbage collections and the thread samples. The events are recorded only if the recording enables them.
+ * <p>
+ * This class needs the jdk.jfr module, which is in Java 11 and later, and in Java 8 from update 262. Hence, it is
+ * compiled only in the jfr profile of the build, and RunMetrics loads it by name if the module is available.
+ */
+class PhaseEvents implements Function<String, Runnable>
+{
+	private static final String CATEGORY = "Mutex de novo";
+
+	@Name("org.panda.mutexdenovo.ObservedPhase")
+	@Label("Observed Statistics")
+	@Category(CATEGORY)
+	@Description("Calculation of the statistics of the gene sets on the original matrix")
+	static class Observed extends Event
+	{
+	}
+
+	@Name("org.panda.mutexdenovo.CalibrationPhase")
+	@Label("Calibration")
+	@Category(CATEGORY)
+	@Description("Calibration of the swap rounds of a shuffle")
+	static class Calibration extends Event
+	{
+	}
+
+	@Name("org.panda.mutexdenovo.PermutationPhase")
+	@Label("Permutation")
+	@Category(CATEGORY)
+	@Description("Randomization of the matrix and counting of the meets")
+	static class Permutation extends Event
+	{
+	}
+
+	@Name("org.panda.mutexdenovo.OutputPhase")
+	@Label("Output")
+	@Category(CATEGORY)
+	@Description("Calculation and writing of the p-values")
+	static class Output extends Event
+	{
+	}
+
+	/**
+	 * Starts the event of a phase.
+	 * @param name name of the phase
+	 * @return action that ends the event and records it, or null if the phase has no event
+	 */
+	@Override
+	public Runnable apply(String name)
+	{
+		Event event;
+		switch (name)
+		{
+			case MutexTester.OBSERVED_PHASE:
+				event = new Observed();
+				break;
+			case MutexTester.CALIBRATION_PHASE:
+				event = new Calibration();
+				break;
+			case MutexTester.PERMUTATION_PHASE:
+				event = new Permutation();
+				break;
+			case MutexTester.OUTPUT_PHASE:
+				event = new Output();
+				break;
+			default:
+				return null;
+		}
+		event.begin();
+		return event::commit;
+	}
+}
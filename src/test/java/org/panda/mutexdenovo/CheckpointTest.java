@@ -0,0 +1,199 @@
+package org.panda.mutexdenovo;
+
+import org.junit.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CheckpointTest
+{
+	/**
+	 * Generates a random matrix and gene sets on it. The first two genes are mutually exclusive, hence their set does
+	 * not settle in the adaptive mode.
+	 */
+	private static Matrix generate(Map<String, Set<String>> geneSets)
+	{
+		Random r = new Random(10);
+		int n = 80;
+		String[] cols = new String[n];
+		for (int i = 0; i < n; i++) cols[i] = "S" + i;
+
+		Map<String, boolean[]> rowMap = new HashMap<>();
+		for (int g = 0; g < 12; g++)
+		{
+			boolean[] b = new boolean[n];
+			for (int i = 0; i < n; i++) b[i] = g < 2 ? i % 3 == g : r.nextDouble() < 0.15;
+			rowMap.put("G" + g, b);
+		}
+
+		geneSets.put("Exclusive", new HashSet<>(Arrays.asList("G0", "G1")));
+		for (int s = 0; s < 6; s++)
+		{
+			Set<String> set = new HashSet<>();
+			for (int k = 0; k < 3; k++) set.add("G" + (2 + r.nextInt(10)));
+			geneSets.put("Set" + s, set);
+		}
+		return new Matrix(cols, rowMap);
+	}
+
+	/**
+	 * Generates a tester whose workers fail after the given number of iterations in total, as an interrupted run.
+	 */
+	private static MutexTester createInterrupted(Matrix matrix, Map<String, Set<String>> geneSets, String outDir,
+		int iterations, int failAfter)
+	{
+		AtomicInteger iterated = new AtomicInteger();
+
+		return new MutexTester(matrix, geneSets, outDir, iterations)
+		{
+			// The checkpoint should be of the MutexTester run that resumes it
+			@Override
+			protected String describeRun()
+			{
+				return MutexTester.class.getName() + super.describeRun().substring(getClass().getName().length());
+			}
+
+			@Override
+			protected Worker createWorker(RandomSource random, int stream) throws IOException
+			{
+				Worker worker = super.createWorker(random, stream);
+				return new Worker()
+				{
+					@Override
+					public void iterate(MeetCounts counts) throws IOException
+					{
+						if (iterated.incrementAndGet() > failAfter) throw new IllegalStateException("Interrupted");
+						worker.iterate(counts);
+					}
+
+					@Override
+					public void retain(boolean[] active)
+					{
+						worker.retain(active);
+					}
+
+					@Override
+					public RunMetrics.WorkerMetrics getMetrics()
+					{
+						return worker.getMetrics();
+					}
+
+					@Override
+					public void writeState(DataOutput out) throws IOException
+					{
+						worker.writeState(out);
+					}
+
+					@Override
+					public void readState(DataInput in) throws IOException
+					{
+						worker.readState(in);
+					}
+
+					@Override
+					public void close() throws IOException
+					{
+						worker.close();
+					}
+
+					@Override
+					public void abort() throws IOException
+					{
+						worker.abort();
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Interrupts a run after the given number of iterations, resumes it from its checkpoint, and compares the counts to
+	 * a run that is not interrupted.
+	 */
+	private static void checkResume(int iterations, int threads, int adaptive, double screen, int failAfter)
+		throws IOException
+	{
+		Map<String, Set<String>> geneSets = new HashMap<>();
+		Matrix matrix = generate(geneSets);
+		Path dir = Files.createTempDirectory("checkpoint-test");
+		String checkpoint = dir.resolve("checkpoint.bin").toString();
+
+		MutexTester interrupted = createInterrupted(matrix, geneSets, dir.resolve("interrupted").toString(),
+			iterations, failAfter);
+		configure(interrupted, threads, adaptive, screen);
+		interrupted.setCheckpoint(checkpoint, 10);
+		try
+		{
+			interrupted.run();
+			fail("The run is not interrupted.");
+		}
+		catch (RuntimeException e)
+		{
+			Throwable cause = e;
+			while (cause.getCause() != null) cause = cause.getCause();
+			assertEquals("Interrupted", cause.getMessage());
+		}
+		assertTrue(Files.exists(dir.resolve("checkpoint.bin")));
+
+		MutexTester resumed = new MutexTester(matrix, geneSets, dir.resolve("resumed").toString(), iterations);
+		configure(resumed, threads, adaptive, screen);
+		resumed.setCheckpoint(checkpoint, 10);
+		resumed.run();
+
+		MutexTester uninterrupted = new MutexTester(matrix, geneSets, dir.resolve("full").toString(), iterations);
+		configure(uninterrupted, threads, adaptive, screen);
+		uninterrupted.run();
+
+		MeetCounts expected = uninterrupted.counts;
+		MeetCounts actual = resumed.counts;
+		if (adaptive > 0 || screen > 0) assertTrue(Arrays.stream(expected.iterations).anyMatch(n -> n < iterations));
+		assertArrayEquals(expected.iterations, actual.iterations);
+		assertArrayEquals(expected.mutex, actual.mutex);
+		assertArrayEquals(expected.cooc, actual.cooc);
+		for (int i = 0; i < expected.geneMutex.length; i++)
+		{
+			assertArrayEquals(expected.geneMutex[i], actual.geneMutex[i]);
+			assertArrayEquals(expected.geneCooc[i], actual.geneCooc[i]);
+		}
+	}
+
+	private static void configure(MutexTester tester, int threads, int adaptive, double screen)
+	{
+		tester.setSeed(11);
+		tester.setThreads(threads);
+		tester.setAdaptive(adaptive);
+		if (screen > 0) tester.setScreen(screen);
+	}
+
+	@Test
+	public void testResume() throws IOException
+	{
+		checkResume(60, 1, 0, 0, 25);
+		checkResume(60, 2, 0, 0, 35);
+	}
+
+	@Test
+	public void testResumeAdaptive() throws IOException
+	{
+		checkResume(400, 1, 3, 0, 150);
+		checkResume(400, 2, 3, 0, 250);
+	}
+
+	/**
+	 * The run is interrupted during the pilot of the screening, hence the screening uses the coverages of the pilot
+	 * before the checkpoint.
+	 */
+	@Test
+	public void testResumeScreened() throws IOException
+	{
+		checkResume(300, 1, 0, 0.5, 55);
+		checkResume(300, 2, 0, 0.5, 75);
+	}
+}
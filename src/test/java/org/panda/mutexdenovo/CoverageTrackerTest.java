@@ -0,0 +1,130 @@
+package org.panda.mutexdenovo;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CoverageTrackerTest
+{
+	/**
+	 * Gene sets where some are duplicates of others, in another order or with a gene that is not in the matrix, and
+	 * some are nested in others.
+	 */
+	private static final String[][] SETS = {
+		{"G0", "G1", "G2"},
+		{"G2", "G0", "G1"},
+		{"G0", "G1", "G2", "Absent"},
+		{"G0", "G1"},
+		{"G0", "G1", "G2", "G3", "G4"},
+		{"G3", "G4"},
+		{"G5", "G6", "G7"},
+		{"G7", "G6", "G5"},
+		{"G5", "G6", "G7", "G8"},
+		{"G9"},
+		{"Absent", "G10", "G11"},
+		{"G12", "G13", "G14", "G0"},
+	};
+
+	/**
+	 * Generates a random matrix.
+	 */
+	private static Matrix generate()
+	{
+		Random r = new Random(12);
+		int n = 100;
+		String[] cols = new String[n];
+		for (int i = 0; i < n; i++) cols[i] = "S" + i;
+
+		Map<String, boolean[]> rowMap = new HashMap<>();
+		for (int g = 0; g < 15; g++)
+		{
+			boolean[] b = new boolean[n];
+			for (int i = 0; i < n; i++) b[i] = r.nextDouble() < 0.2;
+			rowMap.put("G" + g, b);
+		}
+		return new Matrix(cols, rowMap);
+	}
+
+	/**
+	 * Checks the tracked values of the active sets against a count on the matrix.
+	 */
+	private static void check(Matrix matrix, CoverageTracker tracker, boolean[] active)
+	{
+		for (int i = 0; i < SETS.length; i++)
+		{
+			if (!active[i]) continue;
+
+			// Alterations of the set in each sample
+			int[] hits = new int[matrix.getSampleCount()];
+			for (String gene : SETS[i])
+			{
+				int g = matrix.getGeneIndex(gene);
+				if (g < 0) continue;
+				for (int s = 0; s < hits.length; s++)
+				{
+					if (Matrix.isSet(matrix.getRow(g), s)) hits[s]++;
+				}
+			}
+
+			assertEquals(Arrays.stream(hits).filter(h -> h > 0).count(), tracker.getCoverage(i));
+
+			for (int j = 0; j < SETS[i].length; j++)
+			{
+				int g = matrix.getGeneIndex(SETS[i][j]);
+				long geneHits = 0;
+				for (int s = 0; g >= 0 && s < hits.length; s++)
+				{
+					if (Matrix.isSet(matrix.getRow(g), s)) geneHits += hits[s];
+				}
+				assertEquals(geneHits, tracker.getGeneHits(i, j));
+			}
+		}
+	}
+
+	@Test
+	public void testSharedUnits()
+	{
+		GeneSetIndex index = new GeneSetIndex(generate(), SETS);
+
+		assertEquals(index.getUnit(0), index.getUnit(1));
+		assertEquals(index.getUnit(0), index.getUnit(2));
+		assertEquals(index.getUnit(6), index.getUnit(7));
+		assertFalse(index.getUnit(0) == index.getUnit(3));
+		assertFalse(index.getUnit(6) == index.getUnit(8));
+	}
+
+	@Test
+	public void testTrackerAfterMovesAndRetain() throws IOException
+	{
+		Matrix matrix = generate().copy();
+		GeneSetIndex index = new GeneSetIndex(matrix, SETS);
+		CoverageTracker tracker = new CoverageTracker(matrix, index);
+
+		boolean[] active = new boolean[SETS.length];
+		Arrays.fill(active, true);
+		check(matrix, tracker, active);
+
+		Shuffler shuffler = new Shuffler(matrix, new XoroshiroRandom(13), 1);
+		shuffler.setTracker(tracker);
+		for (int i = 0; i < 3; i++)
+		{
+			shuffler.shuffle();
+			check(matrix, tracker, active);
+		}
+
+		// Retire one of the duplicates, a nested set and a set with its own unit
+		active[1] = false;
+		active[3] = false;
+		active[9] = false;
+		tracker.retain(active);
+
+		for (int i = 0; i < 3; i++)
+		{
+			shuffler.shuffle();
+			check(matrix, tracker, active);
+		}
+	}
+}
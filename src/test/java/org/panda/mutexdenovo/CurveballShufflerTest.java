@@ -0,0 +1,127 @@
+package org.panda.mutexdenovo;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CurveballShufflerTest
+{
+	/**
+	 * Generates a random matrix whose genes have different alteration frequencies, including unaltered genes.
+	 */
+	private static Matrix generate()
+	{
+		Random r = new Random(6);
+		int n = 150;
+		String[] cols = new String[n];
+		for (int i = 0; i < n; i++) cols[i] = "S" + i;
+
+		Map<String, boolean[]> rowMap = new LinkedHashMap<>();
+		for (int g = 0; g < 30; g++)
+		{
+			double freq = g % 10 == 0 ? 0 : r.nextDouble() * 0.3;
+			boolean[] b = new boolean[n];
+			for (int i = 0; i < n; i++) b[i] = r.nextDouble() < freq;
+			rowMap.put("G" + g, b);
+		}
+		return new Matrix(cols, rowMap);
+	}
+
+	private static int[] getSampleCounts(Matrix matrix)
+	{
+		int[] counts = new int[matrix.getSampleCount()];
+		for (int g = 0; g < matrix.getGeneCount(); g++)
+		{
+			for (int s = 0; s < counts.length; s++)
+			{
+				if (Matrix.isSet(matrix.getRow(g), s)) counts[s]++;
+			}
+		}
+		return counts;
+	}
+
+	private static int[] getGeneCounts(Matrix matrix)
+	{
+		int[] counts = new int[matrix.getGeneCount()];
+		for (int g = 0; g < counts.length; g++)
+		{
+			counts[g] = matrix.getMutationCount(g);
+		}
+		return counts;
+	}
+
+	@Test
+	public void testShuffleKeepsSumsAndEdges() throws IOException
+	{
+		Matrix matrix = generate();
+		Matrix copy = matrix.copy();
+		int[] sampleCounts = getSampleCounts(matrix);
+		int[] geneCounts = getGeneCounts(matrix);
+
+		CurveballShuffler shuffler = new CurveballShuffler(copy, new XoroshiroRandom(7), 2);
+		for (int i = 0; i < 5; i++)
+		{
+			shuffler.shuffle();
+
+			assertArrayEquals(sampleCounts, getSampleCounts(copy));
+			assertArrayEquals(geneCounts, getGeneCounts(copy));
+
+			// The bitset row of each gene has the samples of its edges
+			Matrix.Edges edges = copy.getEdges();
+			for (int g = 0; g < copy.getGeneCount(); g++)
+			{
+				Set<Integer> samples = new HashSet<>();
+				for (int e = edges.geneStart[g]; e < edges.geneStart[g + 1]; e++)
+				{
+					assertTrue(Matrix.isSet(copy.getRow(g), edges.sampleIdx[e]));
+					samples.add(edges.sampleIdx[e]);
+				}
+				assertEquals(geneCounts[g], samples.size());
+			}
+		}
+
+		assertTrue(shuffler.getSwapAttempts() > 0);
+		assertFalse(copy.getContentHash().equals(matrix.getContentHash()));
+	}
+
+	@Test
+	public void testTrackerFollowsShuffle() throws IOException
+	{
+		Matrix matrix = generate();
+		Matrix copy = matrix.copy();
+
+		Random r = new Random(8);
+		String[][] setMembers = new String[40][];
+		for (int i = 0; i < setMembers.length; i++)
+		{
+			setMembers[i] = new String[2 + r.nextInt(4)];
+			for (int j = 0; j < setMembers[i].length; j++)
+			{
+				setMembers[i][j] = r.nextInt(20) == 0 ? "Absent" : "G" + r.nextInt(30);
+			}
+		}
+		GeneSetIndex index = new GeneSetIndex(copy, setMembers);
+
+		CoverageTracker tracker = new CoverageTracker(copy, index);
+		CurveballShuffler shuffler = new CurveballShuffler(copy, new XoroshiroRandom(9), 1);
+		shuffler.setTracker(tracker);
+
+		for (int i = 0; i < 5; i++)
+		{
+			shuffler.shuffle();
+
+			CoverageTracker recounted = new CoverageTracker(copy, index);
+			for (int set = 0; set < setMembers.length; set++)
+			{
+				assertEquals(recounted.getCoverage(set), tracker.getCoverage(set));
+				for (int j = 0; j < setMembers[set].length; j++)
+				{
+					assertEquals(recounted.getGeneHits(set, j), tracker.getGeneHits(set, j));
+				}
+			}
+		}
+	}
+}
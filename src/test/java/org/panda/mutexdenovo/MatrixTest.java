@@ -0,0 +1,198 @@
+package org.panda.mutexdenovo;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class MatrixTest
+{
+	/**
+	 * Generates a random matrix with a sample size that does not align with the 64-bit words.
+	 */
+	private static Matrix generate(Map<String, boolean[]> rowMap)
+	{
+		Random r = new Random(1);
+		int n = 150;
+		String[] cols = new String[n];
+		for (int i = 0; i < n; i++) cols[i] = "S" + i;
+
+		for (int g = 0; g < 20; g++)
+		{
+			boolean[] b = new boolean[n];
+			for (int i = 0; i < n; i++) b[i] = r.nextDouble() < 0.1;
+			rowMap.put("G" + g, b);
+		}
+		return new Matrix(cols, rowMap);
+	}
+
+	@Test
+	public void testCoverageAndOverlap()
+	{
+		Map<String, boolean[]> rowMap = new HashMap<>();
+		Matrix matrix = generate(rowMap);
+		Set<String> genes = new HashSet<>(Arrays.asList("G1", "G3", "G5", "G8", "G13", "Absent"));
+
+		int cov = 0;
+		int ov = 0;
+		for (int i = 0; i < matrix.getSampleCount(); i++)
+		{
+			int hit = 0;
+			for (String gene : genes)
+			{
+				if (rowMap.containsKey(gene) && rowMap.get(gene)[i]) hit++;
+			}
+			if (hit > 0) cov++;
+			if (hit > 1) ov += hit - 1;
+		}
+
+		assertEquals(cov, matrix.countCoverage(genes));
+		assertEquals(ov, matrix.countOverlap(genes));
+	}
+
+	@Test
+	public void testPairwiseOverlap()
+	{
+		Map<String, boolean[]> rowMap = new HashMap<>();
+		Matrix matrix = generate(rowMap);
+
+		for (String gene1 : rowMap.keySet())
+		{
+			for (String gene2 : rowMap.keySet())
+			{
+				int cnt = 0;
+				for (int i = 0; i < matrix.getSampleCount(); i++)
+				{
+					if (rowMap.get(gene1)[i] && rowMap.get(gene2)[i]) cnt++;
+				}
+				assertEquals(cnt, matrix.countOverlap(gene1, gene2));
+			}
+		}
+	}
+
+	@Test
+	public void testCopyIsIndependent()
+	{
+		Matrix matrix = generate(new HashMap<>());
+		Matrix copy = matrix.copy();
+		Map<String, boolean[]> before = matrix.getRows();
+
+		new Shuffler(copy).shuffle();
+
+		Map<String, boolean[]> after = matrix.getRows();
+		for (String gene : before.keySet())
+		{
+			assertTrue(Arrays.equals(before.get(gene), after.get(gene)));
+			assertEquals(matrix.getMutationCount(gene), copy.getMutationCount(gene));
+		}
+	}
+
+	@Test
+	public void testParseTextAndGzip() throws IOException
+	{
+		// Large enough to span many read buffers
+		Random r = new Random(2);
+		int n = 150;
+		Map<String, boolean[]> rowMap = new LinkedHashMap<>();
+		for (int g = 0; g < 3000; g++)
+		{
+			boolean[] b = new boolean[n];
+			for (int i = 0; i < n; i++) b[i] = r.nextDouble() < 0.1;
+			rowMap.put("G" + g, b);
+		}
+
+		Path dir = Files.createTempDirectory("matrix-test");
+		Path text = dir.resolve("matrix.txt");
+		Path gz = dir.resolve("matrix.txt.gz");
+
+		try (Writer writer = Files.newBufferedWriter(text))
+		{
+			writeMatrix(writer, rowMap, n);
+		}
+		try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gz)))
+		{
+			Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+			writeMatrix(writer, rowMap, n);
+			writer.flush();
+		}
+
+		for (Path file : Arrays.asList(text, gz))
+		{
+			Matrix matrix = new Matrix(file.toString());
+			assertEquals(n, matrix.getSampleCount());
+			assertEquals("S149", matrix.getColNames()[n - 1]);
+
+			Map<String, boolean[]> rows = matrix.getRows();
+			assertEquals(rowMap.keySet(), rows.keySet());
+			for (String gene : rowMap.keySet())
+			{
+				assertTrue(Arrays.equals(rowMap.get(gene), rows.get(gene)));
+			}
+		}
+	}
+
+	@Test
+	public void testBinaryRoundTrip() throws IOException
+	{
+		Matrix matrix = generate(new HashMap<>());
+		Path file = Files.createTempFile("matrix-test", BinaryMatrixFile.EXTENSION);
+		BinaryMatrixFile.write(matrix, file.toString());
+
+		assertTrue(BinaryMatrixFile.isBinary(file.toString()));
+		Matrix read = new Matrix(file.toString());
+		assertTrue(Arrays.equals(matrix.getColNames(), read.getColNames()));
+		assertEquals(matrix.getContentHash(), read.getContentHash());
+	}
+
+	@Test
+	public void testParseMutationList() throws IOException
+	{
+		Path file = Files.createTempFile("mutations", ".txt");
+		Files.write(file, Arrays.asList("Type\tGene\tSample", "snv\tG1\tS1", "indel\tG2\tS2", "snv\tG1\tS2", "",
+			"snv\tG1\tS1"));
+
+		Matrix matrix = new Matrix(file.toString());
+		assertTrue(Arrays.equals(new String[]{"S1", "S2"}, matrix.getColNames()));
+		assertEquals(2, matrix.getMutationCount("G1"));
+		assertEquals(1, matrix.getMutationCount("G2"));
+		assertEquals(1, matrix.countOverlap("G1", "G2"));
+		assertTrue(matrix.isUnalteredSamplesOmitted());
+
+		Path samples = Files.createTempFile("samples", ".txt");
+		Files.write(samples, Arrays.asList("S3", "S2", "S1", ""));
+
+		matrix = new Matrix(file.toString(), samples.toString());
+		assertTrue(Arrays.equals(new String[]{"S3", "S2", "S1"}, matrix.getColNames()));
+		assertEquals(2, matrix.getMutationCount("G1"));
+		assertEquals(1, matrix.countOverlap("G1", "G2"));
+		assertFalse(matrix.isUnalteredSamplesOmitted());
+	}
+
+	/**
+	 * Writes the matrix with Windows line endings, leaving some unaltered values empty, and with an empty last line.
+	 */
+	private static void writeMatrix(Writer writer, Map<String, boolean[]> rowMap, int n) throws IOException
+	{
+		writer.write("Gene");
+		for (int i = 0; i < n; i++) writer.write("\tS" + i);
+		writer.write("\r\n");
+
+		int k = 0;
+		for (String gene : rowMap.keySet())
+		{
+			writer.write(gene);
+			for (boolean b : rowMap.get(gene)) writer.write(b ? "\t1" : k++ % 3 == 0 ? "\t" : "\t0");
+			writer.write("\r\n");
+		}
+		writer.write("\r\n");
+	}
+}
@@ -0,0 +1,175 @@
+package org.panda.mutexdenovo;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class ShardMergerTest
+{
+	private static final int ITERATIONS = 60;
+	private static final int SHARDS = 3;
+
+	/**
+	 * Generates a random matrix and gene sets on it, some with a member that is not in the matrix.
+	 */
+	private static Matrix generate(Map<String, Set<String>> geneSets)
+	{
+		Random r = new Random(3);
+		int n = 80;
+		String[] cols = new String[n];
+		for (int i = 0; i < n; i++) cols[i] = "S" + i;
+
+		Map<String, boolean[]> rowMap = new HashMap<>();
+		for (int g = 0; g < 12; g++)
+		{
+			boolean[] b = new boolean[n];
+			for (int i = 0; i < n; i++) b[i] = r.nextDouble() < 0.15;
+			rowMap.put("G" + g, b);
+		}
+
+		for (int s = 0; s < 6; s++)
+		{
+			Set<String> set = new HashSet<>();
+			for (int k = 0; k < 3; k++) set.add("G" + r.nextInt(12));
+			if (s % 3 == 0) set.add("Absent");
+			geneSets.put("Set" + s, set);
+		}
+		return new Matrix(cols, rowMap);
+	}
+
+	/**
+	 * Runs the shards into subdirectories of the given directory.
+	 */
+	private static List<String> runShards(Path dir, Matrix matrix, Map<String, Set<String>> geneSets, long seed)
+		throws IOException
+	{
+		List<String> shardDirs = new ArrayList<>();
+		for (int s = 0; s < SHARDS; s++)
+		{
+			String shardDir = dir.resolve("shard-" + s).toString();
+			MutexTester tester = new MutexTester(matrix, geneSets, shardDir, ITERATIONS);
+			tester.setSeed(seed);
+			tester.setShard(s, SHARDS);
+			tester.run();
+			shardDirs.add(shardDir);
+		}
+		return shardDirs;
+	}
+
+	@Test
+	public void testMergeSumsTheShards() throws IOException
+	{
+		Map<String, Set<String>> geneSets = new HashMap<>();
+		Matrix matrix = generate(geneSets);
+		Path dir = Files.createTempDirectory("shard-test");
+		List<String> shardDirs = runShards(dir, matrix, geneSets, 5);
+
+		// Sum of the set and member counts in the meet counts files
+		Map<String, int[]> setSums = new HashMap<>();
+		Map<String, int[]> geneSums = new HashMap<>();
+		for (String shardDir : shardDirs)
+		{
+			String set = null;
+			for (String line : Files.readAllLines(Paths.get(shardDir, MutexTester.MEET_COUNTS_FILE)))
+			{
+				String[] t = line.split("\t");
+				if (t[0].equals("Set"))
+				{
+					set = t[1];
+					int[] sums = setSums.computeIfAbsent(set, k -> new int[3]);
+					for (int k = 0; k < 3; k++) sums[k] += Integer.parseInt(t[2 + k]);
+				}
+				else if (t[0].equals("Gene"))
+				{
+					int[] sums = geneSums.computeIfAbsent(set + "\t" + t[1], k -> new int[2]);
+					for (int k = 0; k < 2; k++) sums[k] += Integer.parseInt(t[2 + k]);
+				}
+			}
+		}
+
+		String merged = dir.resolve("merged").toString();
+		ShardMerger.merge(merged, shardDirs, MutexTester.MEMBER_FILES);
+
+		String full = dir.resolve("full").toString();
+		MutexTester tester = new MutexTester(matrix, geneSets, full, ITERATIONS);
+		tester.setSeed(5);
+		tester.run();
+
+		List<String> mergedLines = Files.readAllLines(Paths.get(merged, "results.txt"));
+		List<String> fullLines = Files.readAllLines(Paths.get(full, "results.txt"));
+		assertEquals(fullLines.get(0), mergedLines.get(0));
+		assertEquals(fullLines.size(), mergedLines.size());
+
+		for (String line : mergedLines.subList(1, mergedLines.size()))
+		{
+			String[] t = line.split("\t");
+			int[] sums = setSums.get(t[0]);
+			assertEquals(ITERATIONS, sums[0]);
+			assertEquals(sums[1] / (double) sums[0], Double.parseDouble(t[4]), 0);
+			assertEquals(sums[2] / (double) sums[0], Double.parseDouble(t[5]), 0);
+
+			for (String type : Arrays.asList("mutex", "cooc"))
+			{
+				Map<String, Double> mergedPvals = readMemberPvals(Paths.get(merged, t[0] + "-" + type + ".txt"));
+				Map<String, Double> fullPvals = readMemberPvals(Paths.get(full, t[0] + "-" + type + ".txt"));
+				assertEquals(fullPvals.keySet(), mergedPvals.keySet());
+
+				int k = type.equals("mutex") ? 0 : 1;
+				for (String gene : mergedPvals.keySet())
+				{
+					int[] geneSum = geneSums.get(t[0] + "\t" + gene);
+					assertEquals(geneSum[k] / (double) ITERATIONS, mergedPvals.get(gene), 0);
+				}
+			}
+		}
+	}
+
+	private static Map<String, Double> readMemberPvals(Path file) throws IOException
+	{
+		return Files.readAllLines(file).stream().filter(line -> !line.isEmpty()).map(line -> line.split("\t"))
+			.collect(Collectors.toMap(t -> t[0], t -> Double.parseDouble(t[1])));
+	}
+
+	@Test
+	public void testMergeRejectsOtherRuns() throws IOException
+	{
+		Map<String, Set<String>> geneSets = new HashMap<>();
+		Matrix matrix = generate(geneSets);
+		Path dir = Files.createTempDirectory("shard-test");
+		List<String> shardDirs = runShards(dir, matrix, geneSets, 5);
+		List<String> otherSeed = runShards(dir.resolve("other"), matrix, geneSets, 6);
+		String merged = dir.resolve("merged").toString();
+
+		assertMergeFails(merged, shardDirs.subList(0, SHARDS - 1));
+		assertMergeFails(merged, Arrays.asList(shardDirs.get(0), shardDirs.get(1), shardDirs.get(1)));
+		assertMergeFails(merged, Arrays.asList(shardDirs.get(0), shardDirs.get(1), otherSeed.get(2)));
+
+		// Same gene set names with different members
+		Map<String, Set<String>> changed = new HashMap<>(geneSets);
+		Set<String> members = new HashSet<>(changed.get("Set1"));
+		members.add(members.contains("G0") ? "G1" : "G0");
+		changed.put("Set1", members);
+		List<String> otherSets = runShards(dir.resolve("sets"), matrix, changed, 5);
+		assertMergeFails(merged, Arrays.asList(shardDirs.get(0), shardDirs.get(1), otherSets.get(2)));
+	}
+
+	private static void assertMergeFails(String outDir, List<String> shardDirs) throws IOException
+	{
+		try
+		{
+			ShardMerger.merge(outDir, shardDirs, MutexTester.MEMBER_FILES);
+			fail("Merged shards of different runs: " + shardDirs);
+		}
+		catch (RuntimeException e)
+		{
+			// expected
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package org.panda.mutexdenovo;
+
+import org.junit.Test;
+import org.panda.utility.statistics.FDR;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SignificanceExplorerTest
+{
+	private static final double[] FDRS = {0.01, 0.05, 0.1, 0.2, 0.5};
+
+	/**
+	 * Writes random results, where hits and p-values have many ties and some p-values are zero.
+	 */
+	private static void writeResults(Path file, Random r, int n) throws IOException
+	{
+		List<String> lines = new ArrayList<>();
+		lines.add("ID\tGenes size\tCoverage\tOverlap\tMutex p-value\tCooc p-value");
+		for (int i = 0; i < n; i++)
+		{
+			double p = r.nextInt(10) == 0 ? 0 : Math.round(Math.pow(r.nextDouble(), 3) * 100) / 100.0;
+			lines.add("Set" + i + "\t5\t" + r.nextInt(n / 4 + 1) + "\t" + r.nextInt(5) + "\t" + p + "\t" + (1 - p));
+		}
+		Files.write(file, lines);
+	}
+
+	@Test
+	public void testExploreMatchesFDRSelect() throws IOException
+	{
+		Random r = new Random(4);
+		Path dir = Files.createTempDirectory("explorer-test");
+		Path in = dir.resolve("results.txt");
+		Path out = dir.resolve("explored.txt");
+
+		for (int trial = 0; trial < 20; trial++)
+		{
+			writeResults(in, r, 10 + r.nextInt(200));
+
+			for (PatternType type : PatternType.values())
+			{
+				SignificanceExplorer.explore(in.toString(), out.toString(), type, FDRS);
+
+				Map<String, Double> pvals = new HashMap<>();
+				Map<String, Integer> hits = new HashMap<>();
+				List<String> results = Files.readAllLines(in);
+				for (String line : results.subList(1, results.size()))
+				{
+					String[] t = line.split("\t");
+					pvals.put(t[0], Double.valueOf(t[type == PatternType.MUTEX ? 4 : 5]));
+					hits.put(t[0], Integer.valueOf(t[2]) + Integer.valueOf(t[3]));
+				}
+
+				List<String> lines = Files.readAllLines(out);
+				int[] maximums = new int[FDRS.length];
+				Set<Integer> thresholds = new HashSet<>();
+
+				for (String line : lines.subList(1, lines.size()))
+				{
+					if (line.isEmpty()) break;
+					String[] t = line.split("\t");
+					int thr = Integer.parseInt(t[1]);
+					thresholds.add(thr);
+
+					Map<String, Double> tested = new HashMap<>();
+					pvals.forEach((name, p) ->
+					{
+						if (hits.get(name) >= thr) tested.put(name, p);
+					});
+					assertEquals(tested.size(), Integer.parseInt(t[0]));
+
+					for (int f = 0; f < FDRS.length; f++)
+					{
+						int expected = FDR.select(tested, null, FDRS[f]).size();
+						assertEquals(expected, Integer.parseInt(t[2 + f]));
+						maximums[f] = Math.max(maximums[f], expected);
+					}
+				}
+				assertEquals(new HashSet<>(hits.values()), thresholds);
+
+				String[] t = lines.get(lines.size() - 1).split("\t");
+				for (int f = 0; f < FDRS.length; f++)
+				{
+					assertEquals(maximums[f], Integer.parseInt(t[2 + f]));
+				}
+			}
+		}
+	}
+}